@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.commons.logging.Log;
+
+import static org.apache.commons.lang.StringUtils.*;
+
+/**
+ * Registers a service as an MBean with the platform MBeanServer and unregisters it again, so the MBeanServer does not keep
+ * the service ( and the web application's class loader ) after the application is undeployed.
+ *
+ * The owning service calls {@link #register(Object, String, Log)} when it is initialized and {@link #unregister()} from
+ * {@link org.apache.hivemind.events.RegistryShutdownListener#registryDidShutdown()}.
+ */
+public class PlatformMBeanRegistration {
+
+    /**
+     * the name the MBean is registered under; null if it is not registered.
+     */
+    private ObjectName registeredName;
+
+    private Log log;
+
+    /**
+     * @param mbean
+     * @param objectName blank to not register.
+     * @param log
+     */
+    public synchronized void register(Object mbean, String objectName, Log log) {
+        this.log = log;
+        if ( isNotBlank(objectName) && registeredName == null ) {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                ObjectName name = new ObjectName(objectName);
+                if ( server.isRegistered(name)) {
+                    // i.e. another web application in the same jvm.
+                    log.warn(objectName + " is already registered, not available through JMX");
+                } else {
+                    server.registerMBean(mbean, name);
+                    registeredName = name;
+                }
+            } catch (JMException e) {
+                log.warn("cannot register " + objectName, e);
+            }
+        }
+    }
+
+    /**
+     * Unregister the MBean, if it was registered.
+     */
+    public synchronized void unregister() {
+        if ( registeredName != null ) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch (JMException e) {
+                log.warn("cannot unregister " + registeredName, e);
+            }
+            registeredName = null;
+        }
+    }
+
+    /**
+     * @return true if the MBean is registered.
+     */
+    public synchronized boolean isRegistered() {
+        return registeredName != null;
+    }
+}
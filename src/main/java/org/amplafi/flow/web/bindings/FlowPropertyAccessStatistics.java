@@ -0,0 +1,238 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.bindings;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.amplafi.flow.web.PlatformMBeanRegistration;
+import org.apache.commons.logging.Log;
+import org.apache.hivemind.events.RegistryShutdownListener;
+
+/**
+ * Measures how often and how long {@link FlowPropertyBinding}s take to read each flow property, and makes the
+ * measurements available through JMX ( {@link FlowPropertyAccessStatisticsMBean} ) so hot flow properties can be found in production.
+ *
+ * Disabled by default: a binding then only reads {@link #isEnabled()} ( a volatile field ). When enabled, 1 in {@link #getSampleRate()}
+ * reads of each binding is measured. The latency histogram buckets are powers of 2 microseconds.
+ */
+public class FlowPropertyAccessStatistics implements FlowPropertyAccessStatisticsMBean, RegistryShutdownListener {
+
+    private static final int BUCKETS = 16;
+
+    private static final Comparator<KeyStatistics> MOST_READ_FIRST = new Comparator<KeyStatistics>() {
+        public int compare(KeyStatistics o1, KeyStatistics o2) {
+            return compareLongs(o2.reads.get(), o1.reads.get());
+        }
+    };
+
+    private static final Comparator<KeyStatistics> SLOWEST_FIRST = new Comparator<KeyStatistics>() {
+        public int compare(KeyStatistics o1, KeyStatistics o2) {
+            return compareLongs(o2.totalNanos.get(), o1.totalNanos.get());
+        }
+    };
+
+    private volatile boolean enabled;
+
+    private volatile int sampleRate = 1;
+
+    private final ConcurrentMap<String, KeyStatistics> keys = new ConcurrentHashMap<String, KeyStatistics>();
+
+    private String objectName;
+
+    private final PlatformMBeanRegistration registration = new PlatformMBeanRegistration();
+
+    private Log log;
+
+    /**
+     * Register the MBean ( if {@link #getObjectName()} is not blank ).
+     */
+    public void initializeService() {
+        registration.register(this, objectName, getLog());
+    }
+
+    /**
+     * Unregister the MBean. The BuilderFactory registers this with the ShutdownCoordinator.
+     * @see org.apache.hivemind.events.RegistryShutdownListener#registryDidShutdown()
+     */
+    @Override
+    public void registryDidShutdown() {
+        registration.unregister();
+    }
+
+    /**
+     * @param readCount the number of reads of the binding so far.
+     * @return true if this read should be measured.
+     */
+    public boolean isSampled(int readCount) {
+        int rate = sampleRate;
+        return rate <= 1 || readCount % rate == 0;
+    }
+
+    /**
+     * @param key the flow property.
+     * @param nanos time taken by the read.
+     */
+    public void record(String key, long nanos) {
+        KeyStatistics statistics = keys.get(key);
+        if ( statistics == null ) {
+            statistics = new KeyStatistics(key);
+            KeyStatistics existing = keys.putIfAbsent(key, statistics);
+            if ( existing != null ) {
+                statistics = existing;
+            }
+        }
+        statistics.record(nanos);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    @Override
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    @Override
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    @Override
+    public void setSampleRate(int sampleRate) {
+        this.sampleRate = Math.max(1, sampleRate);
+    }
+
+    @Override
+    public String[] hottestFlowProperties(int count) {
+        return report(MOST_READ_FIRST, count);
+    }
+
+    @Override
+    public String[] slowestFlowProperties(int count) {
+        return report(SLOWEST_FIRST, count);
+    }
+
+    @Override
+    public String flowProperty(String key) {
+        KeyStatistics statistics = keys.get(key);
+        return statistics == null? null : statistics.toString() + " histogram(us)=" + statistics.histogram();
+    }
+
+    @Override
+    public void reset() {
+        keys.clear();
+    }
+
+    private String[] report(Comparator<KeyStatistics> order, int count) {
+        List<KeyStatistics> all = new ArrayList<KeyStatistics>(keys.values());
+        Collections.sort(all, order);
+        String[] report = new String[Math.min(count, all.size())];
+        for (int i = 0; i < report.length; i++) {
+            report[i] = all.get(i).toString();
+        }
+        return report;
+    }
+
+    private static int compareLongs(long l1, long l2) {
+        return l1 < l2? -1: l1 > l2? 1: 0;
+    }
+
+    /**
+     * @param objectName the JMX name to register under; blank to not register.
+     */
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * @return the objectName
+     */
+    public String getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @param log the log to set
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the log
+     */
+    public Log getLog() {
+        return log;
+    }
+
+    /**
+     * The measurements of one flow property.
+     */
+    private static class KeyStatistics {
+        private final String key;
+        private final AtomicLong reads = new AtomicLong();
+        private final AtomicLong totalNanos = new AtomicLong();
+        private final AtomicLong maxNanos = new AtomicLong();
+        /**
+         * bucket i counts the reads that took less than 2^i microseconds ( the last bucket everything slower ).
+         */
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+
+        KeyStatistics(String key) {
+            this.key = key;
+        }
+
+        void record(long nanos) {
+            reads.incrementAndGet();
+            totalNanos.addAndGet(nanos);
+            long max = maxNanos.get();
+            while ( nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+                max = maxNanos.get();
+            }
+            long micros = nanos / 1000;
+            int bucket = micros == 0? 0 : Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros));
+            buckets.incrementAndGet(bucket);
+        }
+
+        String histogram() {
+            StringBuilder histogram = new StringBuilder();
+            for (int i = 0; i < BUCKETS; i++) {
+                long count = buckets.get(i);
+                if ( count > 0 ) {
+                    if ( histogram.length() > 0 ) {
+                        histogram.append(", ");
+                    }
+                    histogram.append(i == BUCKETS - 1? ">=" + (1L << (i - 1)) : "<" + (1L << i)).append(':').append(count);
+                }
+            }
+            return histogram.toString();
+        }
+
+        @Override
+        public String toString() {
+            long count = reads.get();
+            return key + ": reads=" + count + " totalMicros=" + totalNanos.get() / 1000
+                + " averageMicros=" + (count == 0? 0 : totalNanos.get() / count / 1000) + " maxMicros=" + maxNanos.get() / 1000;
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.bindings;
+
+/**
+ * JMX view of {@link FlowPropertyAccessStatistics}.
+ */
+public interface FlowPropertyAccessStatisticsMBean {
+
+    /**
+     * @return true if flow property reads are being measured.
+     */
+    boolean isEnabled();
+
+    /**
+     * @param enabled
+     */
+    void setEnabled(boolean enabled);
+
+    /**
+     * @return 1 in how many reads ( per binding ) is measured.
+     */
+    int getSampleRate();
+
+    /**
+     * @param sampleRate 1 to measure every read.
+     */
+    void setSampleRate(int sampleRate);
+
+    /**
+     * @param count
+     * @return one line per flow property, most measured reads first.
+     */
+    String[] hottestFlowProperties(int count);
+
+    /**
+     * @param count
+     * @return one line per flow property, most total read time first.
+     */
+    String[] slowestFlowProperties(int count);
+
+    /**
+     * @param key
+     * @return the measurements and latency histogram of the flow property.
+     */
+    String flowProperty(String key);
+
+    /**
+     * forget all measurements.
+     */
+    void reset();
+}
@@ -13,14 +13,18 @@
  */
 package org.amplafi.flow.web.bindings;
 
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
 import org.amplafi.flow.FlowActivity;
-import org.amplafi.flow.FlowActivityPhase;
 import org.amplafi.flow.FlowPropertyDefinition;
 import org.amplafi.flow.FlowState;
 import org.amplafi.flow.FlowStateProvider;
 
 import com.sworddance.util.ApplicationIllegalStateException;
-import com.sworddance.util.perf.LapTimer;
 
 import org.apache.commons.logging.Log;
 import org.apache.hivemind.Location;
@@ -51,21 +55,45 @@ import static com.sworddance.util.ApplicationNullPointerException.*;
  * Putting a breakpoint in {@link #getFlowStateProperty(Class)} is a good place to start debugging any issues with
  * parameters of a component not being connected up correctly.
  *
+ * When {@link #isCacheReads()} the value read is kept until the end of the request phase ( rewind or render ), so components
+ * that read the same binding many times only read the flow property once. The cached value is used only for the same flow state,
+ * current activity and expected type, and all the cached values of the request are dropped whenever the flow state may have
+ * changed: when any {@link FlowPropertyBinding} is set and after every listener ( {@link FlowPropertyReadCacheFilter} ).
+ * Other code that changes the flow state while the page renders or rewinds must call {@link #flowStateChanged(IRequestCycle)}.
+ *
+ * When the property is rewind-neutral for the flow ( {@link #getRewindNeutralFlowTypes()} ) it does not affect the structure of the
+ * page ( what is rendered, loops, conditions ), so while the form is rewinding the flow state is not read: the literal default value
+ * ( or null if there is no default ) is returned instead. A property with a default value that is not a literal is always read.
+ *
  * @author Patrick Moore
  */
 public class FlowPropertyBinding implements FlowStateProvider, IBinding {
-    private static final String ALREADY_ADDED_BINDING="_amp_FlowProperty_Binding_Already";
+    /**
+     * request cycle attribute holding the current {@link ReadCacheToken}.
+     */
+    public static final String READ_CACHE_ATTRIBUTE = FlowPropertyBinding.class.getName() + ".readCache";
     /**
      *
      */
     private static final String HTML_ONBLUR = "onblur";
-    private static final String REQUIRED = "required";
     /**
      *
      */
     private static final String VALIDATORS = "validators";
     private static final String HTML_CLASS = "class";
 
+    private static final Map<Class<?>, Class<?>> PRIMITIVE_WRAPPERS = new HashMap<Class<?>, Class<?>>();
+    static {
+        PRIMITIVE_WRAPPERS.put(boolean.class, Boolean.class);
+        PRIMITIVE_WRAPPERS.put(byte.class, Byte.class);
+        PRIMITIVE_WRAPPERS.put(char.class, Character.class);
+        PRIMITIVE_WRAPPERS.put(short.class, Short.class);
+        PRIMITIVE_WRAPPERS.put(int.class, Integer.class);
+        PRIMITIVE_WRAPPERS.put(long.class, Long.class);
+        PRIMITIVE_WRAPPERS.put(float.class, Float.class);
+        PRIMITIVE_WRAPPERS.put(double.class, Double.class);
+    }
+
     private final ValueConverter valueConverter;
 
     private final Location location;
@@ -90,14 +118,58 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
      */
     private BindingFactory validationBindingFactory;
 
-    private String defaultValue;
+    private final BindingSource bindingSource;
 
-    private String description;
+    private final FlowPropertyExpression expression;
 
-    private String componentName;
+    private String description;
 
+    /**
+     * created the first time a non-literal default value is needed ( as before, an invalid default expression fails when it is
+     * first read, not when the page is loaded ).
+     */
     private IBinding defaultValueBinding;
 
+    private boolean cacheReads;
+
+    /**
+     * the flows in which the property is rewind-neutral.
+     */
+    private Set<String> rewindNeutralFlowTypes = Collections.emptySet();
+
+    /**
+     * the form components already decorated ( see {@link #addValidation(FlowState, IRender)} ), shared by the bindings of the page.
+     */
+    private Set<IRender> decorated;
+
+    /**
+     * the last component checked by {@link #addValidation(FlowState, IRender)}, so repeated reads by the same component
+     * are a single comparison.
+     */
+    private IRender lastChecked;
+
+    /**
+     * the last value class and expected type for which {@link #getObject(Class)} did not need to convert the value.
+     */
+    private Class<?> lastRawClass;
+    private Class<?> lastType;
+
+    private FlowPropertyAccessStatistics accessStatistics;
+
+    /**
+     * reads of the flow state by this binding, used to sample the reads that are measured.
+     */
+    private int readCount;
+
+    /**
+     * the cached read: valid while the request's {@link ReadCacheToken} is still cachedToken.
+     */
+    private ReadCacheToken cachedToken;
+    private FlowState cachedFlowState;
+    private FlowActivity cachedActivity;
+    private Class<?> cachedType;
+    private Object cachedValue;
+
     private Log log;
     /**
      * Constructor - Set to protected to ensure the use of the {@link FlowPropertyBindingFactory} in creation of this object.
@@ -108,48 +180,38 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
      * @param location The location of the binding
      * @param expression The expression used to access the binding
      * @param bindingFactory The Tapestry binding factory used to create simple, non-flow bindings
-     * @param bindingSource TODO
+     * @param bindingSource used to create the binding for a default value that is not a literal
      * @throws IllegalArgumentException If the expression is not populated
      */
     protected FlowPropertyBinding(IComponent root, String description, ValueConverter valueConverter, Location location, String expression,
             BindingFactory bindingFactory, BindingSource bindingSource) {
+        this(root, description, valueConverter, location, FlowPropertyExpression.parse(expression), bindingFactory, bindingSource);
+    }
+
+    /**
+     * @param root The flow component that is the source of this binding
+     * @param description A description of how the binding is used
+     * @param valueConverter Used to convert the value of the binding to a specific data type
+     * @param location The location of the binding
+     * @param expression the parsed expression ( shared )
+     * @param bindingFactory The Tapestry binding factory used to create simple, non-flow bindings
+     * @param bindingSource used to create the binding for a default value that is not a literal
+     */
+    protected FlowPropertyBinding(IComponent root, String description, ValueConverter valueConverter, Location location,
+            FlowPropertyExpression expression, BindingFactory bindingFactory, BindingSource bindingSource) {
 
         notNull(description, "description");
         notNull(valueConverter, "valueConverter");
+        notNull(expression, this,":no expression to evaluate");
 
         this.valueConverter = valueConverter;
         this.location = location;
         this.description = description;
         // Save instance variables
         this.root = root;
-
-        notNull(expression, this,":no expression to evaluate");
-        int equalsIndex = expression.indexOf('=');
-        // also check to make sure the '=' is not the last character.
-        if (equalsIndex >= 0 && equalsIndex < expression.length()-1) {
-            this.key = expression.substring(0, equalsIndex);
-            // the expression came in the form "fprop:key=some-default-value"
-            int componentIndicator = expression.indexOf('@', equalsIndex+1);
-            if ( componentIndicator > equalsIndex) {
-                componentName = expression.substring(equalsIndex+1, componentIndicator);
-                this.defaultValue = expression.substring(componentIndicator+1);
-            } else {
-                this.defaultValue = expression.substring(equalsIndex+1);
-            }
-            IComponent flowComponent;
-            if ( isNotBlank(componentName)) {
-                flowComponent = root.getComponent(componentName);
-            } else {
-                flowComponent = root;
-            }
-            defaultValueBinding = bindingSource.createBinding(flowComponent,
-                                                              description+ " default binding. Component Name ='"+componentName+"' defaultValue='"+defaultValue+"'", defaultValue,
-                                                              BindingConstants.OGNL_PREFIX, location);
-        } else {
-            this.key = expression;
-            // just for explicitness
-            this.defaultValue = null;
-        }
+        this.expression = expression;
+        this.key = expression.getKey();
+        this.bindingSource = bindingSource;
         this.cycle = root.getPage().getRequestCycle();
         this.validationBindingFactory = bindingFactory;
     }
@@ -172,11 +234,12 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
     @SuppressWarnings("unchecked")
     public Object getObject(Class type) {
         notNull(type, this, "type");
-        // TODO: performance improvement. During cycle.rewinding if the property does not affect an if clause or layout, can we just return some sort of dummy object?
-        // or something innocent? null might not work.
         // Use case: In MessageEndPointList, the verificationMap is used for determining the html class.
-        Object raw = getFlowStateProperty(type);
+        Object raw = isSkippedWhileRewinding()? getRewindValue(type) : getFlowStateProperty(type);
 
+        if ( isInstance(raw, type)) {
+            return raw;
+        }
         try {
             return valueConverter.coerceValue(raw, type);
         } catch (Exception ex) {
@@ -191,6 +254,29 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
         }
     }
 
+    /**
+     * The value needs no conversion if it already is a type ( or the wrapper of the primitive type ). The last classes that needed no
+     * conversion are remembered, so for the usual reads this is two comparisons.
+     * @param raw
+     * @param type
+     * @return true if raw can be returned as is.
+     */
+    private boolean isInstance(Object raw, Class<?> type) {
+        if ( raw == null ) {
+            return false;
+        }
+        Class<?> rawClass = raw.getClass();
+        if ( rawClass == lastRawClass && type == lastType ) {
+            return true;
+        }
+        if ( type.isAssignableFrom(rawClass) || ( type.isPrimitive() && PRIMITIVE_WRAPPERS.get(type) == rawClass )) {
+            lastRawClass = rawClass;
+            lastType = type;
+            return true;
+        }
+        return false;
+    }
+
     /**
      * Gets the value of this binding.
      *
@@ -199,18 +285,63 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
      */
     @Override
     public Object getObject() throws BindingException {
-        return getFlowStateProperty(null);
+        return isSkippedWhileRewinding()? getRewindValue(null) : getFlowStateProperty(null);
+    }
+
+    private boolean isSkippedWhileRewinding() {
+        if ( rewindNeutralFlowTypes.isEmpty() || ( expression.hasDefaultValue() && !expression.isLiteral())
+            || !getRequestCycle().isRewinding()) {
+            return false;
+        }
+        FlowState flowState = getFlowState();
+        return flowState != null && rewindNeutralFlowTypes.contains(flowState.getFlowTypeName());
+    }
+
+    /**
+     * @param expected
+     * @return the value used instead of the flow property while rewinding: the literal default value or null.
+     */
+    private Object getRewindValue(Class<?> expected) {
+        return expression.isLiteral()? getDefaultValue(expected) : null;
     }
 
     protected Object getFlowStateProperty(Class<?> expected) {
-        Object result = null;
         // Determine if there is a flow state to get the value from, if not just return defaultValue
         FlowState flowState = getFlowState();
-        LapTimer.sLap("FlowPropertyBinding: Getting property ",key);
+        if ( !cacheReads ) {
+            return readFlowStateProperty(flowState, expected);
+        }
+        FlowActivity activity = null;
         if (flowState != null) {
-            addValidation(flowState.getCurrentActivity(), cycle.renderStackPeek());
+            activity = flowState.getCurrentActivity();
+            addValidation(flowState, cycle.renderStackPeek());
+        }
+        ReadCacheToken token = getReadCacheToken();
+        if ( token != cachedToken || flowState != cachedFlowState || activity != cachedActivity || expected != cachedType) {
+            cachedValue = readFlowStateProperty(flowState, expected);
+            cachedToken = token;
+            cachedFlowState = flowState;
+            cachedActivity = activity;
+            cachedType = expected;
+        }
+        return cachedValue;
+    }
+
+    private Object readFlowStateProperty(FlowState flowState, Class<?> expected) {
+        Object result = null;
+        if (flowState != null) {
+            if ( !cacheReads ) {
+                addValidation(flowState, cycle.renderStackPeek());
+            }
             try {
-                result = flowState.getProperty(key, expected);
+                FlowPropertyAccessStatistics statistics = accessStatistics;
+                if ( statistics != null && statistics.isEnabled() && statistics.isSampled(++readCount)) {
+                    long start = System.nanoTime();
+                    result = flowState.getProperty(key, expected);
+                    statistics.record(key, System.nanoTime() - start);
+                } else {
+                    result = flowState.getProperty(key, expected);
+                }
             } catch (RuntimeException e) {
                 if (e.getCause() instanceof ValidatorException) {
                     throw new BindingException(e.getMessage(), this, e.getCause());
@@ -219,13 +350,32 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
                 }
             }
         }
-        LapTimer.sLap("FlowPropertyBinding: Got property ",key);
-        if (result == null && defaultValueBinding != null) {
-            result = defaultValueBinding.getObject(expected);
+        if (result == null && expression.hasDefaultValue()) {
+            result = getDefaultValue(expected);
         }
         return result;
     }
 
+    private Object getDefaultValue(Class<?> expected) {
+        if ( expression.isLiteral()) {
+            Object literalValue = expression.getLiteralValue();
+            return expected == null || literalValue == null? literalValue : valueConverter.coerceValue(literalValue, expected);
+        }
+        if ( defaultValueBinding == null ) {
+            String componentName = expression.getComponentName();
+            IComponent flowComponent;
+            if ( isNotBlank(componentName)) {
+                flowComponent = root.getComponent(componentName);
+            } else {
+                flowComponent = root;
+            }
+            defaultValueBinding = bindingSource.createBinding(flowComponent,
+                                                              description+ " default binding. Component Name ='"+componentName+"' defaultValue='"+expression.getDefaultValue()+"'", expression.getDefaultValue(),
+                                                              BindingConstants.OGNL_PREFIX, location);
+        }
+        return defaultValueBinding.getObject(expected);
+    }
+
     /**
      * Sets the value of the binding, if allowed.
      *
@@ -240,6 +390,39 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
         FlowState flowState = getFlowState();
         ApplicationIllegalStateException.notNull(flowState, this,": no attached flow - cannot set value");
         flowState.setProperty(key, value);
+        if ( cacheReads ) {
+            // other bindings may read this property ( or properties derived from it )
+            flowStateChanged(getRequestCycle());
+        }
+    }
+
+    /**
+     * Drop the cached reads of the request.
+     * @param cycle
+     */
+    public static void flowStateChanged(IRequestCycle cycle) {
+        cycle.removeAttribute(READ_CACHE_ATTRIBUTE);
+    }
+
+    /**
+     * @return the token of the current request phase; a new token is created for each phase ( rewind, render ) and
+     * after every {@link #flowStateChanged(IRequestCycle)}.
+     */
+    private ReadCacheToken getReadCacheToken() {
+        IRequestCycle requestCycle = getRequestCycle();
+        ReadCacheToken token = (ReadCacheToken) requestCycle.getAttribute(READ_CACHE_ATTRIBUTE);
+        if ( token == null || token.rewinding != requestCycle.isRewinding()) {
+            token = new ReadCacheToken(requestCycle.isRewinding());
+            requestCycle.setAttribute(READ_CACHE_ATTRIBUTE, token);
+        }
+        return token;
+    }
+
+    /**
+     * @return the request cycle the page is attached to now.
+     */
+    private IRequestCycle getRequestCycle() {
+        return root.getPage().getRequestCycle();
     }
 
     /**
@@ -249,7 +432,7 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
      */
     @Override
     public String toString() {
-        return super.toString() + "[expression=" + this.key + (defaultValue==null?"]": (" defaultValue="+this.defaultValue+"]"));
+        return super.toString() + "[expression=" + this.key + (!expression.hasDefaultValue()?"]": (" defaultValue="+expression.getDefaultValue()+"]"));
     }
 
     /**
@@ -273,14 +456,25 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
      *
      * - the responses i see are empty, just <ajax-response></ajax-response>.. not yet know why
      *
-     * @param activity
+     * Each form component is decorated once, by the first binding it reads: the components already decorated are remembered in
+     * a set shared by all the bindings of the page instance ( {@link #setDecorated(Set)} ), so the other bindings read by the
+     * component do not add their validators, class or onblur.
+     *
+     * @param flowState
      * @param render
      */
-    private void addValidation(FlowActivity activity, IRender render) {
+    private void addValidation(FlowState flowState, IRender render) {
+        if ( render == lastChecked ) {
+            return;
+        }
+        lastChecked = render;
         if (render instanceof AbstractFormComponent && render instanceof ValidatableField) {
             AbstractFormComponent formComponent = (AbstractFormComponent) render;
-            IBinding alreadyBinding = formComponent.getBinding(ALREADY_ADDED_BINDING);
-            if ( alreadyBinding == null) {
+            if ( decorated == null ) {
+                decorated = Collections.newSetFromMap(new IdentityHashMap<IRender, Boolean>());
+            }
+            if ( decorated.add(formComponent)) {
+                FlowActivity activity = flowState.getCurrentActivity();
                 FlowPropertyDefinition definition = activity.getFlowPropertyDefinition(this.key);
                 if ( definition != null) {
                     IBinding validatorsBinding = formComponent.getBinding(VALIDATORS);
@@ -292,7 +486,10 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
                         if ( htmlClassBinding == null) {
                             htmlClass= htmlClassToAdd;
                         } else if (htmlClassBinding instanceof LiteralBinding) {
-                            htmlClass =(String)htmlClassBinding.getObject(String.class) + " "+htmlClassToAdd;
+                            String existingHtmlClass = (String)htmlClassBinding.getObject(String.class);
+                            if ( !(" " + existingHtmlClass + " ").contains(" " + htmlClassToAdd + " ")) {
+                                htmlClass = existingHtmlClass + " "+htmlClassToAdd;
+                            }
                         } else {
                             getLog().debug(activity.getFullActivityInstanceNamespace()+ ": cannot add class to component="+formComponent);
                         }
@@ -308,16 +505,8 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
                         }
                     }
                     if (validatorsBinding == null) {
-                        String validators = definition.getValidators();
-                        if ( definition.getPropertyRequired() == FlowActivityPhase.advance) {
-                            if ( isBlank(validators)) {
-                                validators = REQUIRED;
-                            } else {
-                                // may re-add required if already present - seems like a minor issue
-                                validators = REQUIRED + "," + validators;
-                            }
-                        }
-                        if (isNotBlank(validators)) {
+                        String validators = expression.getValidators(definition);
+                        if (validators != null) {
                             validatorsBinding = this.validationBindingFactory.createBinding(formComponent, "", validators, null);
                             formComponent.setBinding(VALIDATORS, validatorsBinding);
                         }
@@ -325,9 +514,6 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
                         getLog().debug(activity.getFullActivityInstanceNamespace()+": property binding "+this+": make sure that @Parameter(cache=false) is set because first access is not by a ValidatableField component");
                     }
                 }
-                // avoid constantly re-adding the bindings
-                // HACK: this however results in adding the attribute to all html nodes using a FlowPropertyBinding.
-                formComponent.setBinding(ALREADY_ADDED_BINDING, new LiteralBinding(ALREADY_ADDED_BINDING, valueConverter, location, "true"));
             }
         }
     }
@@ -345,6 +531,63 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
         return description;
     }
 
+    /**
+     * @param decorated the form components already decorated; the same ( identity ) set must be given to all the bindings of a page.
+     */
+    public void setDecorated(Set<IRender> decorated) {
+        this.decorated = decorated;
+    }
+
+    /**
+     * @return the form components already decorated.
+     */
+    public Set<IRender> getDecorated() {
+        return decorated;
+    }
+
+    /**
+     * @param cacheReads true to keep the value read for the rest of the request phase.
+     */
+    public void setCacheReads(boolean cacheReads) {
+        this.cacheReads = cacheReads;
+    }
+
+    /**
+     * @return the cacheReads
+     */
+    public boolean isCacheReads() {
+        return cacheReads;
+    }
+
+    /**
+     * @param rewindNeutralFlowTypes the flow types in which the property does not affect the structure of the page, so it does
+     * not need to be read while the form is rewinding.
+     */
+    public void setRewindNeutralFlowTypes(Set<String> rewindNeutralFlowTypes) {
+        this.rewindNeutralFlowTypes = rewindNeutralFlowTypes == null? Collections.<String>emptySet() : rewindNeutralFlowTypes;
+    }
+
+    /**
+     * @return the rewindNeutralFlowTypes
+     */
+    public Set<String> getRewindNeutralFlowTypes() {
+        return rewindNeutralFlowTypes;
+    }
+
+    /**
+     * @param accessStatistics measures the reads when enabled ( optional ).
+     */
+    public void setAccessStatistics(FlowPropertyAccessStatistics accessStatistics) {
+        this.accessStatistics = accessStatistics;
+    }
+
+    /**
+     * @return the accessStatistics
+     */
+    public FlowPropertyAccessStatistics getAccessStatistics() {
+        return accessStatistics;
+    }
+
     /**
      * @param log the log to set
      */
@@ -358,4 +601,14 @@ public class FlowPropertyBinding implements FlowStateProvider, IBinding {
     public Log getLog() {
         return log;
     }
+
+    /**
+     * Identifies a request phase in which cached reads are valid.
+     */
+    private static class ReadCacheToken {
+        private final boolean rewinding;
+        ReadCacheToken(boolean rewinding) {
+            this.rewinding = rewinding;
+        }
+    }
 }
@@ -13,29 +13,71 @@
  */
 package org.amplafi.flow.web.bindings;
 
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
 import org.amplafi.flow.FlowStateProvider;
 import org.apache.commons.logging.Log;
 import org.apache.hivemind.Location;
 import org.apache.tapestry.IBinding;
 import org.apache.tapestry.IComponent;
+import org.apache.tapestry.IPage;
+import org.apache.tapestry.IRender;
+import org.apache.tapestry.IRequestCycle;
 import org.apache.tapestry.binding.AbstractBindingFactory;
 import org.apache.tapestry.binding.BindingFactory;
 import org.apache.tapestry.binding.BindingSource;
 
+import static org.apache.commons.lang.StringUtils.*;
+
 
 /**
  * Factory to create {@link FlowPropertyBinding}s.
  *
+ * Each expression is parsed once ( {@link FlowPropertyExpression} ) and shared by all the bindings
+ * created for it, in all the page instances. The parsed expressions are weakly referenced, so the expressions of
+ * pages that have been discarded ( i.e. after a Tapestry reset ) are not kept.
+ *
+ * The bindings of a page instance share the set of the form components they have decorated, so each form component is
+ * decorated only by the first binding it reads ( see {@link FlowPropertyBinding#setDecorated(Set)} ). A page instance is loaded
+ * in a single request, so while it is loaded the set is found in a request cycle attribute; afterwards only the page's bindings
+ * hold it.
+ *
  * @author Patrick Moore
  */
 public class FlowPropertyBindingFactory extends AbstractBindingFactory {
 
+    /**
+     * request cycle attribute holding the decorated form components of the pages loaded by the request, by page instance.
+     */
+    public static final String DECORATED_ATTRIBUTE = FlowPropertyBindingFactory.class.getName() + ".decorated";
+
     private Log log;
     /**
      * The Tapestry BindingFactory that the FlowPropertyBinding will use to create bindings
      */
     private BindingFactory validationBindingFactory;
     private BindingSource bindingSource;
+    private boolean cacheReads;
+    private FlowPropertyAccessStatistics accessStatistics;
+    /**
+     * the flow types in which each property is rewind-neutral, by property name.
+     */
+    private Map<String, Set<String>> rewindNeutralProperties = Collections.emptyMap();
+    /**
+     * the parsed expressions, weakly referenced: an expression is kept while a binding ( of any page instance ) uses it.
+     */
+    private final ConcurrentMap<String, ExpressionReference> expressions = new ConcurrentHashMap<String, ExpressionReference>();
+    private final ReferenceQueue<FlowPropertyExpression> collectedExpressions = new ReferenceQueue<FlowPropertyExpression>();
 
     /**
      * Set the {@link BindingFactory} that is used to create a flow binding.
@@ -67,12 +109,82 @@ public class FlowPropertyBindingFactory extends AbstractBindingFactory {
                     ": is required to implement FlowProvider interface");
         }
 
+        FlowPropertyExpression parsedExpression = getExpression(expression);
         FlowPropertyBinding binding = new FlowPropertyBinding( root, bindingDescription, getValueConverter(), location,
-                expression, validationBindingFactory, this.bindingSource);
+                parsedExpression, validationBindingFactory, this.bindingSource);
         binding.setLog(getLog());
+        binding.setCacheReads(cacheReads);
+        binding.setAccessStatistics(accessStatistics);
+        binding.setRewindNeutralFlowTypes(rewindNeutralProperties.get(parsedExpression.getKey()));
+        binding.setDecorated(getDecorated(root.getPage()));
         return binding;
     }
 
+    /**
+     * @param page
+     * @return the set of the form components decorated by the bindings of the page instance.
+     */
+    @SuppressWarnings("unchecked")
+    private Set<IRender> getDecorated(IPage page) {
+        IRequestCycle cycle = page.getRequestCycle();
+        if ( cycle == null ) {
+            // the binding uses a set of its own.
+            return null;
+        }
+        Map<IPage, Set<IRender>> decorated = (Map<IPage, Set<IRender>>) cycle.getAttribute(DECORATED_ATTRIBUTE);
+        if ( decorated == null ) {
+            decorated = new IdentityHashMap<IPage, Set<IRender>>();
+            cycle.setAttribute(DECORATED_ATTRIBUTE, decorated);
+        }
+        Set<IRender> pageDecorated = decorated.get(page);
+        if ( pageDecorated == null ) {
+            pageDecorated = Collections.newSetFromMap(new IdentityHashMap<IRender, Boolean>());
+            decorated.put(page, pageDecorated);
+        }
+        return pageDecorated;
+    }
+
+    /**
+     * @param expression
+     * @return the parsed expression ( shared ).
+     */
+    protected FlowPropertyExpression getExpression(String expression) {
+        if ( expression == null ) {
+            // reports the missing expression
+            return FlowPropertyExpression.parse(expression);
+        }
+        ExpressionReference reference = expressions.get(expression);
+        FlowPropertyExpression parsed = reference == null? null : reference.get();
+        if ( parsed == null ) {
+            purgeExpressions();
+            parsed = FlowPropertyExpression.parse(expression);
+            ExpressionReference created = new ExpressionReference(expression, parsed, collectedExpressions);
+            while (true) {
+                ExpressionReference existing = expressions.putIfAbsent(expression, created);
+                if ( existing == null ) {
+                    break;
+                }
+                FlowPropertyExpression existingExpression = existing.get();
+                if ( existingExpression != null ) {
+                    parsed = existingExpression;
+                    break;
+                } else if ( expressions.replace(expression, existing, created)) {
+                    break;
+                }
+            }
+        }
+        return parsed;
+    }
+
+    /**
+     * drop the entries of the expressions no binding uses any more.
+     */
+    private void purgeExpressions() {
+        for(Reference<? extends FlowPropertyExpression> reference = collectedExpressions.poll(); reference != null; reference = collectedExpressions.poll()) {
+            expressions.remove(((ExpressionReference)reference).expression, reference);
+        }
+    }
+
     /**
      * @param bindingSource the bindingSource to set
      */
@@ -87,6 +199,74 @@ public class FlowPropertyBindingFactory extends AbstractBindingFactory {
         return bindingSource;
     }
 
+    /**
+     * @param cacheReads true if the bindings should keep the values read for the rest of the request phase
+     * ( see {@link FlowPropertyBinding#isCacheReads()} ).
+     */
+    public void setCacheReads(boolean cacheReads) {
+        this.cacheReads = cacheReads;
+    }
+
+    /**
+     * @return the cacheReads
+     */
+    public boolean isCacheReads() {
+        return cacheReads;
+    }
+
+    /**
+     * @param rewindNeutralProperties the flow types in which each property does not affect the structure of the page, by property name
+     * ( see {@link FlowPropertyBinding#getRewindNeutralFlowTypes()} ).
+     */
+    public void setRewindNeutralProperties(Map<String, Set<String>> rewindNeutralProperties) {
+        this.rewindNeutralProperties = rewindNeutralProperties;
+    }
+
+    /**
+     * A property is only rewind-neutral in the flows listed: the same property name can affect the structure of another flow's page.
+     * @param rewindNeutralProperties comma-separated "flowType.propertyName" entries ( null or blank for none ).
+     */
+    public void setRewindNeutralPropertyNames(String rewindNeutralProperties) {
+        Map<String, Set<String>> properties = new HashMap<String, Set<String>>();
+        if ( isNotBlank(rewindNeutralProperties)) {
+            for(String name: split(rewindNeutralProperties, ", ")) {
+                String flowType = substringBefore(name, ".");
+                String propertyName = substringAfter(name, ".");
+                if ( isBlank(flowType) || isBlank(propertyName)) {
+                    throw new IllegalArgumentException(name + ": rewind-neutral properties must be given as flowType.propertyName");
+                }
+                Set<String> flowTypes = properties.get(propertyName);
+                if ( flowTypes == null ) {
+                    flowTypes = new HashSet<String>();
+                    properties.put(propertyName, flowTypes);
+                }
+                flowTypes.add(flowType);
+            }
+        }
+        this.rewindNeutralProperties = properties;
+    }
+
+    /**
+     * @return the rewindNeutralProperties
+     */
+    public Map<String, Set<String>> getRewindNeutralProperties() {
+        return rewindNeutralProperties;
+    }
+
+    /**
+     * @param accessStatistics measures the flow property reads of the bindings ( optional ).
+     */
+    public void setAccessStatistics(FlowPropertyAccessStatistics accessStatistics) {
+        this.accessStatistics = accessStatistics;
+    }
+
+    /**
+     * @return the accessStatistics
+     */
+    public FlowPropertyAccessStatistics getAccessStatistics() {
+        return accessStatistics;
+    }
+
     /**
      * @param log the log to set
      */
@@ -100,4 +280,15 @@ public class FlowPropertyBindingFactory extends AbstractBindingFactory {
     public Log getLog() {
         return log;
     }
+
+    /**
+     * Weak reference to a parsed expression that remembers the expression it was parsed from.
+     */
+    private static class ExpressionReference extends WeakReference<FlowPropertyExpression> {
+        private final String expression;
+        ExpressionReference(String expression, FlowPropertyExpression parsed, ReferenceQueue<FlowPropertyExpression> queue) {
+            super(parsed, queue);
+            this.expression = expression;
+        }
+    }
 }
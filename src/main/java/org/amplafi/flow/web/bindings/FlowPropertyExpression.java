@@ -0,0 +1,215 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.bindings;
+
+import java.util.regex.Pattern;
+
+import org.amplafi.flow.FlowActivityPhase;
+import org.amplafi.flow.FlowPropertyDefinition;
+import org.apache.commons.lang.StringUtils;
+import org.apache.tapestry.binding.BindingConstants;
+
+import static com.sworddance.util.ApplicationNullPointerException.*;
+import static org.apache.commons.lang.StringUtils.*;
+
+/**
+ * A parsed "fprop:" expression: "key", "key=defaultValue" or "key=componentName@defaultValue".
+ * Immutable ( apart from the memo of {@link #getValidators(FlowPropertyDefinition)} ), so one instance is shared by all the {@link FlowPropertyBinding}s with the same expression
+ * ( see {@link FlowPropertyBindingFactory} ).
+ *
+ * Default values that are literals ( "literal:" values, and OGNL numbers, quoted strings, true, false and null ) are
+ * evaluated here once; other default values are bound with OGNL ( Tapestry caches the parsed OGNL per expression ).
+ */
+public class FlowPropertyExpression {
+
+    private static final String LITERAL_PREFIX = BindingConstants.LITERAL_PREFIX + ":";
+
+    private static final String OGNL_PREFIX = BindingConstants.OGNL_PREFIX + ":";
+
+    private static final String REQUIRED = "required";
+
+    /**
+     * no leading zeros: OGNL reads "010" as an octal number.
+     */
+    private static final Pattern INTEGER = Pattern.compile("-?(0|[1-9][0-9]{0,8})");
+
+    private static final Pattern DOUBLE = Pattern.compile("-?[0-9]{1,15}\\.[0-9]{1,15}");
+
+    private final String key;
+
+    private final String componentName;
+
+    private final String defaultValue;
+
+    private final boolean literal;
+
+    private final Object literalValue;
+
+    /**
+     * the validators computed last, with the definition values they were computed from ( nearly always the same ). The definition
+     * itself is not kept: this expression is shared and outlives replaced flow definitions.
+     */
+    private volatile Validators validators;
+
+    private FlowPropertyExpression(String key, String componentName, String defaultValue) {
+        this.key = key;
+        this.componentName = componentName;
+        this.defaultValue = defaultValue;
+        Object[] parsedLiteral = defaultValue == null? null : parseLiteral(defaultValue);
+        this.literal = parsedLiteral != null;
+        this.literalValue = literal? parsedLiteral[0] : null;
+    }
+
+    /**
+     * @param expression
+     * @return the parsed expression.
+     */
+    public static FlowPropertyExpression parse(String expression) {
+        notNull(expression, "no expression to evaluate");
+        int equalsIndex = expression.indexOf('=');
+        // also check to make sure the '=' is not the last character.
+        if (equalsIndex >= 0 && equalsIndex < expression.length()-1) {
+            String key = expression.substring(0, equalsIndex);
+            // the expression came in the form "fprop:key=some-default-value"
+            int componentIndicator = expression.indexOf('@', equalsIndex+1);
+            if ( componentIndicator > equalsIndex) {
+                return new FlowPropertyExpression(key, expression.substring(equalsIndex+1, componentIndicator),
+                    expression.substring(componentIndicator+1));
+            } else {
+                return new FlowPropertyExpression(key, null, expression.substring(equalsIndex+1));
+            }
+        } else {
+            return new FlowPropertyExpression(expression, null, null);
+        }
+    }
+
+    /**
+     * @param value
+     * @return a one element array with the value of the literal, or null if value is not a literal.
+     */
+    private static Object[] parseLiteral(String value) {
+        if ( value.startsWith(LITERAL_PREFIX)) {
+            return new Object[] { value.substring(LITERAL_PREFIX.length()) };
+        }
+        String ognl = value.startsWith(OGNL_PREFIX)? value.substring(OGNL_PREFIX.length()) : value;
+        if ( ognl.indexOf(':') >= 0 && !value.startsWith(OGNL_PREFIX)) {
+            // some other binding prefix ( or an OGNL expression we do not try to understand ).
+            return null;
+        }
+        ognl = ognl.trim();
+        if ( INTEGER.matcher(ognl).matches()) {
+            return new Object[] { Integer.valueOf(ognl) };
+        } else if ( DOUBLE.matcher(ognl).matches()) {
+            return new Object[] { Double.valueOf(ognl) };
+        } else if ( "true".equals(ognl) || "false".equals(ognl)) {
+            return new Object[] { Boolean.valueOf(ognl) };
+        } else if ( "null".equals(ognl)) {
+            return new Object[] { null };
+        } else if ( ognl.length() >= 2 && ognl.indexOf('\\') < 0) {
+            char quote = ognl.charAt(0);
+            if ( (quote == '\'' || quote == '"') && ognl.charAt(ognl.length()-1) == quote
+                && ognl.indexOf(quote, 1) == ognl.length()-1) {
+                String string = ognl.substring(1, ognl.length()-1);
+                // OGNL: a single char in single quotes is a Character.
+                if ( quote == '\'' && string.length() == 1) {
+                    return new Object[] { Character.valueOf(string.charAt(0)) };
+                }
+                return new Object[] { string };
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the flow property name.
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return the name of the component the default value is evaluated against; null for the flow component.
+     */
+    public String getComponentName() {
+        return componentName;
+    }
+
+    /**
+     * @return the default value expression; null if there is no default value.
+     */
+    public String getDefaultValue() {
+        return defaultValue;
+    }
+
+    /**
+     * @return true if there is a default value.
+     */
+    public boolean hasDefaultValue() {
+        return defaultValue != null;
+    }
+
+    /**
+     * @return true if the default value is a literal ( {@link #getLiteralValue()} ) so no binding is needed.
+     */
+    public boolean isLiteral() {
+        return literal;
+    }
+
+    /**
+     * @return the value of a literal default value.
+     */
+    public Object getLiteralValue() {
+        return literalValue;
+    }
+
+    /**
+     * @param definition the definition of the flow property in the current activity.
+     * @return the validators for a form component bound to the flow property: the definition's validators, with "required"
+     * if the property is required to advance; null if none.
+     */
+    public String getValidators(FlowPropertyDefinition definition) {
+        String definitionValidators = definition.getValidators();
+        boolean requiredToAdvance = definition.getPropertyRequired() == FlowActivityPhase.advance;
+        Validators last = validators;
+        if ( last == null || last.requiredToAdvance != requiredToAdvance || !StringUtils.equals(last.definitionValidators, definitionValidators)) {
+            String result = definitionValidators;
+            if ( requiredToAdvance ) {
+                if ( isBlank(result)) {
+                    result = REQUIRED;
+                } else {
+                    // may re-add required if already present - seems like a minor issue
+                    result = REQUIRED + "," + result;
+                }
+            }
+            last = validators = new Validators(definitionValidators, requiredToAdvance, isNotBlank(result)? result : null);
+        }
+        return last.validators;
+    }
+
+    @Override
+    public String toString() {
+        return key + (defaultValue == null? "" : "=" + (componentName == null? "" : componentName + "@") + defaultValue);
+    }
+
+    private static class Validators {
+        private final String definitionValidators;
+        private final boolean requiredToAdvance;
+        private final String validators;
+        Validators(String definitionValidators, boolean requiredToAdvance, String validators) {
+            this.definitionValidators = definitionValidators;
+            this.requiredToAdvance = requiredToAdvance;
+            this.validators = validators;
+        }
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.bindings;
+
+import org.apache.tapestry.IActionListener;
+import org.apache.tapestry.IComponent;
+import org.apache.tapestry.IRequestCycle;
+import org.apache.tapestry.listener.ListenerInvoker;
+import org.apache.tapestry.listener.ListenerInvokerFilter;
+
+/**
+ * Drops the {@link FlowPropertyBinding} cached reads of the request after every listener: listeners ( and the flow
+ * transitions they start ) change the flow state without going through the bindings.
+ */
+public class FlowPropertyReadCacheFilter implements ListenerInvokerFilter {
+
+    @Override
+    public void invokeListener(IActionListener listener, IComponent component, IRequestCycle cycle, ListenerInvoker delegate) {
+        try {
+            delegate.invokeListener(listener, component, cycle);
+        } finally {
+            FlowPropertyBinding.flowStateChanged(cycle);
+        }
+    }
+}
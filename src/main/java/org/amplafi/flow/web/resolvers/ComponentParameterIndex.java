@@ -0,0 +1,210 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.net.JarURLConnection;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.apache.commons.logging.Log;
+import org.apache.tapestry.annotations.AnnotationUtils;
+import org.apache.tapestry.annotations.Parameter;
+
+import static org.apache.commons.lang.StringUtils.*;
+
+/**
+ * Index of the {@link Parameter} annotated parameters of component classes.
+ * Maps the component class name to its parameter names and the {@link Parameter#defaultValue()} of each parameter.
+ *
+ * The annotations are only read once per class. The index can be filled when the service starts by
+ * scanning the component class packages ( the "org.apache.tapestry.component-class-packages" of Flow.library and
+ * any packages contributed by the application ).
+ *
+ * We have to do this by hand because at template generation time,
+ * {@link org.apache.tapestry.spec.IComponentSpecification#getRequiredParameters()} has no
+ * value.
+ */
+public class ComponentParameterIndex {
+
+    private static final String CLASS_SUFFIX = ".class";
+
+    private final ConcurrentMap<String, Map<String, String>> parameters = new ConcurrentHashMap<String, Map<String, String>>();
+
+    /**
+     * component class name to {@link #getSignature(String)}.
+     */
+    private final ConcurrentMap<String, String> classSignatures = new ConcurrentHashMap<String, String>();
+
+    private List<String> componentClassPackages;
+
+    private Log log;
+
+    /**
+     * Index all the classes in {@link #getComponentClassPackages()}.
+     */
+    public void initializeService() {
+        if ( componentClassPackages != null ) {
+            for(String packageName: componentClassPackages) {
+                indexPackage(packageName);
+            }
+        }
+    }
+
+    /**
+     * @param componentClassName
+     * @return a hash of the class name and its parameters ( with their default values ).
+     */
+    public String getSignature(String componentClassName) {
+        String classSignature = classSignatures.get(componentClassName);
+        if ( classSignature == null ) {
+            classSignature = FlowTemplateSignature.hash(componentClassName,
+                new TreeMap<String, String>(getParameters(componentClassName)).toString());
+            classSignatures.putIfAbsent(componentClassName, classSignature);
+        }
+        return classSignature;
+    }
+
+    /**
+     * @param componentClassName
+     * @return unmodifiable map of parameter name to the parameter's default value ( blank if none ).
+     * Empty if the class cannot be found.
+     */
+    public Map<String, String> getParameters(String componentClassName) {
+        Map<String, String> found = parameters.get(componentClassName);
+        if ( found == null ) {
+            try {
+                found = findParameters(Class.forName(componentClassName));
+            } catch (ClassNotFoundException e) {
+                getLog().error("while finding required parameters for "+componentClassName, e);
+                found = Collections.emptyMap();
+            }
+            Map<String, String> existing = parameters.putIfAbsent(componentClassName, found);
+            if ( existing != null ) {
+                found = existing;
+            }
+        }
+        return found;
+    }
+
+    /**
+     * index all the component classes in the package ( not sub-packages ).
+     * @param packageName
+     */
+    public void indexPackage(String packageName) {
+        String path = packageName.replace('.', '/');
+        ClassLoader classLoader = getClass().getClassLoader();
+        try {
+            Enumeration<URL> resources = classLoader.getResources(path);
+            while(resources.hasMoreElements()) {
+                URL url = resources.nextElement();
+                if ( "file".equals(url.getProtocol())) {
+                    File directory = new File(URLDecoder.decode(url.getPath(), "UTF-8"));
+                    String[] fileNames = directory.list();
+                    if ( fileNames != null ) {
+                        for(String fileName: fileNames) {
+                            indexClass(classLoader, packageName, fileName);
+                        }
+                    }
+                } else {
+                    URLConnection connection = url.openConnection();
+                    if ( connection instanceof JarURLConnection ) {
+                        JarFile jarFile = ((JarURLConnection)connection).getJarFile();
+                        String prefix = path + "/";
+                        for(Enumeration<JarEntry> entries = jarFile.entries(); entries.hasMoreElements();) {
+                            String entryName = entries.nextElement().getName();
+                            if ( entryName.startsWith(prefix) && entryName.indexOf('/', prefix.length()) < 0) {
+                                indexClass(classLoader, packageName, entryName.substring(prefix.length()));
+                            }
+                        }
+                    }
+                }
+            }
+        } catch (IOException e) {
+            getLog().warn("while indexing component parameters of package "+packageName, e);
+        }
+    }
+
+    private void indexClass(ClassLoader classLoader, String packageName, String fileName) {
+        // skip inner classes
+        if ( fileName.endsWith(CLASS_SUFFIX) && fileName.indexOf('$') < 0) {
+            String className = packageName + "." + fileName.substring(0, fileName.length() - CLASS_SUFFIX.length());
+            if ( !parameters.containsKey(className)) {
+                try {
+                    parameters.putIfAbsent(className, findParameters(Class.forName(className, false, classLoader)));
+                } catch (ClassNotFoundException e) {
+                    getLog().debug("while indexing "+className, e);
+                } catch (LinkageError e) {
+                    getLog().debug("while indexing "+className, e);
+                }
+            }
+        }
+    }
+
+    private Map<String, String> findParameters(Class<?> clazz) {
+        Map<String, String> list = new LinkedHashMap<String, String>();
+        for (Method method : clazz.getMethods()) {
+            Parameter parameter = method.getAnnotation(Parameter.class);
+            if (parameter!=null) {
+                String name = parameter.name();
+                if (isBlank(name)) {
+                    name = AnnotationUtils.getPropertyName(method);
+                }
+                list.put(name, parameter.defaultValue());
+            }
+        }
+        return Collections.unmodifiableMap(list);
+    }
+
+    /**
+     * @param componentClassPackages the packages to index when the service starts.
+     */
+    public void setComponentClassPackages(List<String> componentClassPackages) {
+        this.componentClassPackages = componentClassPackages;
+    }
+
+    /**
+     * @return the componentClassPackages
+     */
+    public List<String> getComponentClassPackages() {
+        return componentClassPackages;
+    }
+
+    /**
+     * @param log the log to set
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the log
+     */
+    public Log getLog() {
+        return log;
+    }
+}
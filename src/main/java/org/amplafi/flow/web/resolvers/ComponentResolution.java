@@ -0,0 +1,56 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.spec.IComponentSpecification;
+
+/**
+ * The result of {@link ComponentSpecificationLookup#resolve(org.apache.tapestry.IRequestCycle, INamespace, String, org.apache.hivemind.Location)}.
+ */
+public class ComponentResolution {
+
+    private final IComponentSpecification specification;
+
+    private final INamespace namespace;
+
+    private final String type;
+
+    public ComponentResolution(IComponentSpecification specification, INamespace namespace, String type) {
+        this.specification = specification;
+        this.namespace = namespace;
+        this.type = type;
+    }
+
+    /**
+     * @return the specification of the component.
+     */
+    public IComponentSpecification getSpecification() {
+        return specification;
+    }
+
+    /**
+     * @return the namespace the component was found in.
+     */
+    public INamespace getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * @return the component type without the library prefix.
+     */
+    public String getType() {
+        return type;
+    }
+}
@@ -0,0 +1,36 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import org.apache.hivemind.Location;
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.IRequestCycle;
+
+/**
+ * Stateless, thread-safe way to resolve component specifications. Unlike
+ * {@link org.apache.tapestry.resolver.ComponentSpecificationResolver} the result is returned instead of being
+ * kept in the resolver, so a single instance can be shared by all threads.
+ */
+public interface ComponentSpecificationLookup {
+
+    /**
+     * @param cycle
+     * @param containerNamespace
+     * @param type may have a library prefix ( i.e. "flow:FlowBorder" ).
+     * @param location
+     * @return the resolved component.
+     * @throws org.apache.hivemind.ApplicationRuntimeException if the component cannot be found.
+     */
+    ComponentResolution resolve(IRequestCycle cycle, INamespace containerNamespace, String type, Location location);
+}
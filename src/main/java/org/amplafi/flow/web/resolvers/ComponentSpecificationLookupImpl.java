@@ -0,0 +1,116 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import org.apache.hivemind.Location;
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.IRequestCycle;
+import org.apache.tapestry.resolver.ComponentSpecificationResolver;
+import org.apache.tapestry.resolver.ISpecificationResolverDelegate;
+import org.apache.tapestry.spec.IComponentSpecification;
+
+/**
+ * {@link ComponentSpecificationLookup} that keeps no state of its own. A component is looked up, in order:
+ * <ol>
+ * <li>in the namespace ( the components declared in it and those already resolved by Tapestry ),</li>
+ * <li>in the {@link FlowSpecificationCache} ( the generated flow components ),</li>
+ * <li>with the {@link ISpecificationResolverDelegate},</li>
+ * <li>with Tapestry's {@link ComponentSpecificationResolver} for everything else ( .jwc files and component class packages ).
+ * That resolver keeps the result of resolve() in the instance, so it must stay a "threaded" hivemind service.</li>
+ * </ol>
+ */
+public class ComponentSpecificationLookupImpl implements ComponentSpecificationLookup {
+
+    private FlowSpecificationCache flowSpecificationCache;
+
+    private ISpecificationResolverDelegate delegate;
+
+    private ComponentSpecificationResolver componentSpecificationResolver;
+
+    public ComponentSpecificationLookupImpl() {
+    }
+
+    public ComponentSpecificationLookupImpl(ComponentSpecificationResolver componentSpecificationResolver) {
+        this.componentSpecificationResolver = componentSpecificationResolver;
+    }
+
+    @Override
+    public ComponentResolution resolve(IRequestCycle cycle, INamespace containerNamespace, String type, Location location) {
+        INamespace namespace = containerNamespace;
+        String simpleType = type;
+        int colon = type.indexOf(':');
+        if ( colon > 0 && namespace != null ) {
+            namespace = namespace.getChildNamespace(type.substring(0, colon));
+            simpleType = type.substring(colon + 1);
+        }
+        IComponentSpecification specification = null;
+        if ( namespace != null && namespace.containsComponentType(simpleType)) {
+            specification = namespace.getComponentSpecification(simpleType);
+        }
+        if ( specification == null && flowSpecificationCache != null ) {
+            specification = flowSpecificationCache.getComponentSpecification(simpleType);
+        }
+        if ( specification == null && delegate != null && namespace != null ) {
+            specification = delegate.findComponentSpecification(cycle, namespace, simpleType);
+        }
+        if ( specification != null ) {
+            return new ComponentResolution(specification, namespace, simpleType);
+        }
+        componentSpecificationResolver.resolve(cycle, containerNamespace, type, location);
+        return new ComponentResolution(componentSpecificationResolver.getSpecification(),
+            componentSpecificationResolver.getNamespace(), componentSpecificationResolver.getType());
+    }
+
+    /**
+     * @param flowSpecificationCache the flowSpecificationCache to set
+     */
+    public void setFlowSpecificationCache(FlowSpecificationCache flowSpecificationCache) {
+        this.flowSpecificationCache = flowSpecificationCache;
+    }
+
+    /**
+     * @return the flowSpecificationCache
+     */
+    public FlowSpecificationCache getFlowSpecificationCache() {
+        return flowSpecificationCache;
+    }
+
+    /**
+     * @param delegate the delegate to set
+     */
+    public void setDelegate(ISpecificationResolverDelegate delegate) {
+        this.delegate = delegate;
+    }
+
+    /**
+     * @return the delegate
+     */
+    public ISpecificationResolverDelegate getDelegate() {
+        return delegate;
+    }
+
+    /**
+     * @param componentSpecificationResolver the componentSpecificationResolver to set
+     */
+    public void setComponentSpecificationResolver(ComponentSpecificationResolver componentSpecificationResolver) {
+        this.componentSpecificationResolver = componentSpecificationResolver;
+    }
+
+    /**
+     * @return the componentSpecificationResolver
+     */
+    public ComponentSpecificationResolver getComponentSpecificationResolver() {
+        return componentSpecificationResolver;
+    }
+}
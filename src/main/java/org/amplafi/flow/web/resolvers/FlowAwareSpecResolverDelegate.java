@@ -7,9 +7,7 @@ import org.apache.tapestry.IRequestCycle;
 import org.apache.tapestry.INamespace;
 import org.apache.hivemind.Resource;
 import org.apache.hivemind.Location;
-import org.apache.hivemind.impl.DefaultClassResolver;
 import org.apache.hivemind.impl.LocationImpl;
-import org.apache.hivemind.util.ClasspathResource;
 
 /**
  * Creates the template for a tapestry page that will contain a single flow.
@@ -17,6 +15,13 @@ import org.apache.hivemind.util.ClasspathResource;
  * case the created page (from this resolver) will not really be used.
  * Note: Request parameters are NOT currently used to initialize the flow of the created
  * page.
+ *
+ * The application that makes this its tapestry.page.SpecificationResolverDelegate should also set the shared
+ * {@link FlowSpecificationCache} ( reset with Tapestry's caches and evicted by {@link FlowTemplateInvalidator} ):
+ * <pre>
+ * &lt;set-service property="flowSpecificationCache" service-id="amplafi.flow.tapestry4.FlowSpecificationCache"/&gt;
+ * </pre>
+ * Without it, the flow page specifications are not cached.
  */
 public class FlowAwareSpecResolverDelegate extends ClasspathSpecResolverDelegate {
 
@@ -24,27 +29,40 @@ public class FlowAwareSpecResolverDelegate extends ClasspathSpecResolverDelegate
 
     private String suffix;
     private Class pageClass;
+    private FlowSpecificationCache flowSpecificationCache;
 
     public FlowAwareSpecResolverDelegate() {
     }
 
+    /**
+     * Pages whose name ends with the suffix are looked up once per namespace: the result ( a page found on the classpath
+     * or the generated flow page ) is kept in the {@link FlowSpecificationCache} ( if there is one ) so all the instances
+     * of the page share one specification and the classpath is not searched again.
+     */
     @Override
     public IComponentSpecification findPageSpecification(IRequestCycle cycle, INamespace namespace, String name) {
-        IComponentSpecification spec = super.findPageSpecification(cycle, namespace, name);
-        if (spec==null) {
-            // see if it's for a page with flow
-            if (name.endsWith(suffix)) {
+        if ( !name.endsWith(suffix)) {
+            return super.findPageSpecification(cycle, namespace, name);
+        }
+        FlowSpecificationCache cache = getFlowSpecificationCache();
+        IComponentSpecification spec = cache == null? null : cache.getPageSpecification(namespace, name);
+        if ( spec == null ) {
+            spec = super.findPageSpecification(cycle, namespace, name);
+            if (spec==null) {
+                // it's for a page with flow
                 String flow = name.substring(0, name.length() - suffix.length());
                 spec = installFlowComponent(flow, pageClass);
             }
+            if ( cache != null ) {
+                spec = cache.putPageSpecification(namespace, name, spec);
+            }
         }
         return spec;
     }
 
     private IComponentSpecification installFlowComponent(String flowName, Class clazz) {
         String type = flowName + suffix;
-        Resource componentResource = new ClasspathResource(
-                new DefaultClassResolver(), type);
+        Resource componentResource = FlowComponentSpecResolver.createSpecificationResource(type);
 
         Location location = new LocationImpl(componentResource);
 
@@ -74,4 +92,18 @@ public class FlowAwareSpecResolverDelegate extends ClasspathSpecResolverDelegate
     public void setPageClass(Class pageClass) {
         this.pageClass = pageClass;
     }
+
+    /**
+     * @param flowSpecificationCache the shared FlowSpecificationCache service.
+     */
+    public void setFlowSpecificationCache(FlowSpecificationCache flowSpecificationCache) {
+        this.flowSpecificationCache = flowSpecificationCache;
+    }
+
+    /**
+     * @return the flowSpecificationCache; null if it has not been set.
+     */
+    public FlowSpecificationCache getFlowSpecificationCache() {
+        return flowSpecificationCache;
+    }
 }
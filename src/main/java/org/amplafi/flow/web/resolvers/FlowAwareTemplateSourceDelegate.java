@@ -17,11 +17,10 @@ package org.amplafi.flow.web.resolvers;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
-import java.io.StringWriter;
-import java.lang.reflect.Method;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashSet;
-import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
@@ -44,7 +43,6 @@ import org.apache.tapestry.IComponent;
 import org.apache.tapestry.IMarkupWriter;
 import org.apache.tapestry.INamespace;
 import org.apache.tapestry.IRequestCycle;
-import org.apache.tapestry.annotations.AnnotationUtils;
 import org.apache.tapestry.annotations.Parameter;
 import org.apache.tapestry.markup.MarkupWriterImpl;
 import org.apache.tapestry.markup.UTFMarkupFilter;
@@ -136,13 +134,32 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
     static final String ATTACH_OGNL = " " + FlowConstants.ATTACHED_FLOW + "=\"" + FLOW_TO_USE + "\" ";
     private static final String JWCID = "jwcid";
     private static final String[] FIXED_PARAMETERS = { ASYNC, UPDATE_COMPONENTS };
-    private ITemplateParser parser;
+    private static final String FLOW_NAME_PLACEHOLDER = "FlowNamePlaceholder";
+    /**
+     * larger buffers are not kept for reuse.
+     */
+    private static final int MAX_REUSED_BUFFER = 256 * 1024;
+    private static final ThreadLocal<TemplateBuffer> TEMPLATE_BUFFER = new ThreadLocal<TemplateBuffer>() {
+        @Override
+        protected TemplateBuffer initialValue() {
+            return new TemplateBuffer(16 * 1024);
+        }
+    };
+    /**
+     * Must be safe to use from multiple threads at once. The default configuration injects tapestry.parse.TemplateParser
+     * which is a "threaded" service so each thread gets its own parser.
+     */
+    private volatile ITemplateParser parser;
     private ComponentSpecificationResolver componentSpecificationResolver;
+    private ComponentSpecificationLookup componentSpecificationLookup;
     private String debugCondition;
     private String additionalUpdateComponents;
     private String pageTemplate;
+    private ComponentParameterIndex parameterIndex;
+    private volatile PrecompiledFlowTemplates precompiledTemplates;
+    private volatile Scaffolding scaffolding;
 
-    public synchronized void setParser(ITemplateParser parser) {
+    public void setParser(ITemplateParser parser) {
         this.parser = parser;
     }
 
@@ -182,9 +199,104 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
 
     @Override
     protected String createComponentTemplate(Flow flow, IRequestCycle cycle, INamespace containerNamespace, Location location) {
+        return new String(createComponentTemplateData(flow, cycle, containerNamespace, location));
+    }
+
+    /**
+     * Writes the template into a reused {@link TemplateBuffer}. The scaffolding around the activities' blocks
+     * is written from the precomputed {@link Scaffolding}; only the activities' components and the FlowBorder
+     * go through the markup writer.
+     *
+     * The block of each activity is kept in the {@link FlowTemplateCache} as a fragment. When the flow definition changes,
+     * only the blocks of activities whose {@link FlowTemplateSignature} ( which includes the class and parameters of the
+     * activity's component ) changed are generated again; the other blocks are copied from their fragments.
+     */
+    @Override
+    protected char[] createComponentTemplateData(Flow flow, IRequestCycle cycle, INamespace containerNamespace, Location location) {
+        PrecompiledFlowTemplates precompiledTemplates = getPrecompiledTemplates();
+        if ( !precompiledTemplates.isEmpty()) {
+            String precompiled = precompiledTemplates.getComponentTemplate(flow, getPrecompiledSignature(flow, cycle, containerNamespace, location));
+            if ( precompiled != null ) {
+                return precompiled.toCharArray();
+            }
+        }
         String flowName = flow.getFlowPropertyProviderName();
-        StringWriter sw = new StringWriter();
-        IExtendedMarkupWriter writer = new ExtendedMarkupWriterImpl(createMarkupWriter(new PrintWriter(sw)));
+        Scaffolding scaffolding = getScaffolding();
+        TemplateBuffer buffer = TEMPLATE_BUFFER.get();
+        buffer.reset();
+        buffer.write(scaffolding.formNamePrefix);
+        buffer.write(escapeFlowName(flowName));
+        buffer.write(scaffolding.formNameSuffix);
+        IExtendedMarkupWriter writer = new ExtendedMarkupWriterImpl(createMarkupWriter(new PrintWriter(buffer)));
+        FlowTemplateCache templateCache = getTemplateCache();
+
+        for (FlowActivity activity: flow.getActivities()) {
+            String componentName = activity.getComponentName();
+            // Cannot just look at isPossiblyVisible() because that method also looks for a page name.
+            if ( isNotBlank(componentName)) {
+                IComponentSpecification specification = resolveSpecification(cycle, containerNamespace, componentName, location);
+                if ( specification == null && cycle == null ) {
+                    // ahead-of-time generation cannot tell a missing component from one that needs a request to resolve:
+                    // leave the whole template ( and the activity ) to the first request.
+                    throw new FlowTemplateWarmUp.DeferredTemplateException("Cannot resolve " + componentName + " of flow " + flowName
+                        + " without a request cycle", location);
+                } else if ( specification == null ) {
+                    // couldn't find the component :-( ... normal for invisible components.
+                    ((FlowActivityImplementor)activity).setInvisible(true);
+                    continue;
+                }
+                // reuse the block generated for an earlier definition of this activity with the same component class and parameters.
+                String blockName = FlowWebUtils.getBlockName(activity.getIndex());
+                String activitySignature = FlowTemplateSignature.getSignature(flow, activity, getComponentSignature(specification));
+                char[] fragment = templateCache.getFragment(flowName, containerNamespace, blockName, activitySignature);
+                if ( fragment != null ) {
+                    buffer.write(fragment);
+                    continue;
+                }
+                int fragmentStart = buffer.size();
+                writer.create("div", JWCID, blockName + "@Block").println();
+                String flowComponentName = "fic_" +activity.getFlowPropertyProviderName().replaceAll("\\s*", "");
+                writer.createEmpty("div", JWCID, flowComponentName + "@" + componentName);
+
+                HashSet<String> matchedParameters = new HashSet<String>();
+                assignFlowParameters(flow, writer, activity, specification, flowComponentName, matchedParameters);
+                writer.end();
+                writer.println();
+                templateCache.putFragment(flowName, containerNamespace, blockName, activitySignature, buffer.toCharArray(fragmentStart, buffer.size()));
+            }
+        }
+
+        writeFlowBorderStart(writer);
+        Set<String> matchedParameters = new HashSet<String>(Arrays.asList(FlowConstants.FSHIDE_FLOW_CONTROL,
+                UPDATE_COMPONENTS, END_LISTENER, CANCEL_LISTENER, FINISH_LISTENER, NEXT_LISTENER, PREVIOUS_LISTENER, ASYNC,
+                DEBUG, ADDITIONAL_UPDATE_COMPONENTS, "usingLinkSubmit", "disabled"));
+
+        IComponentSpecification flowBorderSpecification = resolveSpecification(cycle, containerNamespace, FLOW_BORDER_COMPONENT, location);
+        if ( flowBorderSpecification == null ) {
+            // FlowBorder is part of this library so this is a configuration problem - let resolver report it.
+            flowBorderSpecification = getComponentSpecificationLookup().resolve(cycle, containerNamespace, FLOW_BORDER_COMPONENT, location).getSpecification();
+        }
+        assignFlowParameters(flow, writer, null, flowBorderSpecification, FullFlowComponent.FLOW_BORDER_COMPONENT_NAME, matchedParameters);
+        writer.closeTag();
+        buffer.write(scaffolding.suffix);
+
+        char[] templateData = buffer.toCharArray();
+        if ( buffer.capacity() > MAX_REUSED_BUFFER ) {
+            TEMPLATE_BUFFER.remove();
+        }
+        if ( getLog().isDebugEnabled()) {
+            getLog().debug("generated template for Flow '" + flowName + "':");
+            getLog().debug(new String(templateData));
+        }
+        return templateData;
+    }
+
+    /**
+     * Writes the part of the template before the activities' blocks.
+     * @param writer
+     * @param flowName
+     */
+    private void writePrefix(IExtendedMarkupWriter writer, String flowName) {
         //writer.create("span", JWCID, "allFlow@If", "renderTag", "false", "condition", "ognl:visibleFlow").println();
         // 10/15/2007 - TODO Tap bug #? -- there is an issue with the cancel listener being
         // discarded if the flow component is in an external form.
@@ -212,32 +324,13 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
         writer.create("span", JWCID, "flowBlock@Block").println();
         writer.create("div", JWCID, VISIBLE_FLOW_IF +
                 "@If", "condition", OGNL+"visibleFlow", "renderTag", "false").println();
+    }
 
-        for (FlowActivity activity: flow.getActivities()) {
-            String componentName = activity.getComponentName();
-            // Cannot just look at isPossiblyVisible() because that method also looks for a page name.
-            if ( isNotBlank(componentName)) {
-                IComponentSpecification specification;
-                try {
-                    componentSpecificationResolver.resolve(cycle, containerNamespace, componentName, location);
-                    specification = componentSpecificationResolver.getSpecification();
-                } catch (ApplicationRuntimeException e) {
-                    // couldn't find the component :-( ... normal for invisible components.
-                    ((FlowActivityImplementor)activity).setInvisible(true);
-                    continue;
-                }
-                String blockName = FlowWebUtils.getBlockName(activity.getIndex());
-                writer.create("div", JWCID, blockName + "@Block").println();
-                String flowComponentName = "fic_" +activity.getFlowPropertyProviderName().replaceAll("\\s*", "");
-                writer.createEmpty("div", JWCID, flowComponentName + "@" + componentName);
-
-                HashSet<String> matchedParameters = new HashSet<String>();
-                assignFlowParameters(flow, writer, activity, specification, flowComponentName, matchedParameters);
-                writer.end();
-                writer.println();
-            }
-        }
-
+    /**
+     * Opens the FlowBorder element and writes its fixed parameters.
+     * @param writer
+     */
+    private void writeFlowBorderStart(IExtendedMarkupWriter writer) {
         writer.create("div",
                 JWCID, FullFlowComponent.FLOW_BORDER_COMPONENT_NAME+"@"+FLOW_BORDER_COMPONENT,
                 FlowConstants.FSHIDE_FLOW_CONTROL, OGNL+FlowConstants.FSHIDE_FLOW_CONTROL,
@@ -255,15 +348,14 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
         if (additionalUpdateComponents!=null) {
             writer.attribute(ADDITIONAL_UPDATE_COMPONENTS, additionalUpdateComponents);
         }
-        Set<String> matchedParameters = new HashSet<String>(Arrays.asList(FlowConstants.FSHIDE_FLOW_CONTROL,
-                UPDATE_COMPONENTS, END_LISTENER, CANCEL_LISTENER, FINISH_LISTENER, NEXT_LISTENER, PREVIOUS_LISTENER, ASYNC,
-                DEBUG, ADDITIONAL_UPDATE_COMPONENTS, "usingLinkSubmit", "disabled"));
-
-        // TODO can we figure out a way to have the IComponentSpecification for FlowBorder to be cached?
-        componentSpecificationResolver.resolve(cycle, containerNamespace, FLOW_BORDER_COMPONENT, location);
-        IComponentSpecification flowBorderSpecification = componentSpecificationResolver.getSpecification();
-        assignFlowParameters(flow, writer, null, flowBorderSpecification, FullFlowComponent.FLOW_BORDER_COMPONENT_NAME, matchedParameters);
+    }
 
+    /**
+     * Writes the part of the template after the FlowBorder start tag. The writer must have the
+     * flowBlock, visibleFlowIf and FlowBorder elements open.
+     * @param writer
+     */
+    private void writeSuffix(IExtendedMarkupWriter writer) {
         writer.createEmpty("span", JWCID, "@RenderBody").println();
         writer.createEmpty("div", JWCID, "@RenderBlock", "block", OGNL +"currentBlock").println();
         writer.end();
@@ -275,13 +367,58 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
         // close the if visible
         //writer.end();
         //writer.println();
+    }
 
-        String content = sw.toString();
-        if ( getLog().isDebugEnabled()) {
-            getLog().debug("generated template for Flow '" + flowName + "':");
-            getLog().debug(content);
+    /**
+     * @param flowName
+     * @return the flow name as the markup writer writes it in an attribute value ( the name is part of the form's jwcid ).
+     */
+    private String escapeFlowName(String flowName) {
+        for (int i = 0; i < flowName.length(); i++) {
+            char c = flowName.charAt(i);
+            if ( !(c < 128 && (Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.'))) {
+                // let the markup filter decide how to write the name.
+                TemplateBuffer scratch = new TemplateBuffer(32 + flowName.length() * 8);
+                IMarkupWriter writer = createMarkupWriter(new PrintWriter(scratch));
+                writer.begin("form");
+                writer.attribute(JWCID, flowName);
+                writer.closeTag();
+                return substringBetween(scratch.toString(), JWCID + "=\"", "\"");
+            }
+        }
+        return flowName;
+    }
+
+    private Scaffolding getScaffolding() {
+        if ( scaffolding == null ) {
+            TemplateBuffer buffer = new TemplateBuffer(2048);
+            IExtendedMarkupWriter writer = new ExtendedMarkupWriterImpl(createMarkupWriter(new PrintWriter(buffer)));
+            writePrefix(writer, FLOW_NAME_PLACEHOLDER);
+            String prefix = buffer.toString();
+            int flowNameStart = prefix.indexOf(FLOW_NAME_PLACEHOLDER);
+            writeFlowBorderStart(writer);
+            writer.closeTag();
+            int suffixStart = buffer.size();
+            writeSuffix(writer);
+            scaffolding = new Scaffolding(prefix.substring(0, flowNameStart).toCharArray(),
+                prefix.substring(flowNameStart + FLOW_NAME_PLACEHOLDER.length()).toCharArray(),
+                buffer.toCharArray(suffixStart, buffer.size()));
+        }
+        return scaffolding;
+    }
+
+    /**
+     * The parts of the component template that are the same for every flow.
+     */
+    private static class Scaffolding {
+        private final char[] formNamePrefix;
+        private final char[] formNameSuffix;
+        private final char[] suffix;
+        Scaffolding(char[] formNamePrefix, char[] formNameSuffix, char[] suffix) {
+            this.formNamePrefix = formNamePrefix;
+            this.formNameSuffix = formNameSuffix;
+            this.suffix = suffix;
         }
-        return content;
     }
 
     /**
@@ -299,9 +436,11 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
      */
     private void assignFlowParameters(Flow flow, IExtendedMarkupWriter writer, FlowActivity activity, IComponentSpecification specification, String componentName,
             Set<String> matchedParameters) {
+        FlowTemplateRecord record = getCurrentRecord();
+        long start = record == null? 0 : System.nanoTime();
 
         // add components required parameters
-        Map<String, Parameter> foundParameters = findParameters(specification);
+        Map<String, String> foundParameters = getParameterIndex().getParameters(specification.getComponentClassName());
 
         // add flow properties that are not masked by activity-specific property definitions
         if ( flow.getPropertyDefinitions() != null ) {
@@ -335,10 +474,12 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
             }
         }
         // now add missing required parameters
-        for(Map.Entry<String, Parameter> entry: foundParameters.entrySet()) {
-            String parameter = entry.getKey();
+        for(String parameter: foundParameters.keySet()) {
             writeFpropAttributeConnections(writer, componentName, matchedParameters, foundParameters, parameter, parameter);
         }
+        if ( record != null ) {
+            record.addParameterNanos(System.nanoTime() - start);
+        }
     }
 
     /**
@@ -357,10 +498,10 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
      * @param componentParameterName
      */
     private void writeFpropAttributeConnections(IExtendedMarkupWriter writer, String componentName, Set<String> matchedParameters,
-            Map<String, Parameter> foundParameters, String flowPropertyName, String componentParameterName) {
+            Map<String, String> foundParameters, String flowPropertyName, String componentParameterName) {
         if (foundParameters.containsKey(flowPropertyName)  && !matchedParameters.contains(flowPropertyName)) {
             String value = FLOW_PROPERTY_PREFIX + flowPropertyName;
-            String defaultValue = foundParameters.get(flowPropertyName).defaultValue();
+            String defaultValue = foundParameters.get(flowPropertyName);
             if( isBlank(defaultValue)) {
                 writer.attribute(componentParameterName, value);
             } else {
@@ -371,15 +512,113 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
         }
     }
 
+    /**
+     * @param flow
+     * @return the {@link FlowTemplateSignature} of the flow with the settings of this delegate.
+     */
+    @Override
+    public String getTemplateSignature(Flow flow) {
+        return FlowTemplateSignature.getSignature(flow, debugCondition, additionalUpdateComponents);
+    }
+
+    /**
+     * @param flow
+     * @param cycle
+     * @param containerNamespace
+     * @param location
+     * @return the signature a template precompiled by {@link FlowTemplateCompiler} must have to be used for the flow:
+     * the {@link #getTemplateSignature(Flow)} and the {@link #getComponentSignature(Flow, IRequestCycle, INamespace, Location)}.
+     */
+    String getPrecompiledSignature(Flow flow, IRequestCycle cycle, INamespace containerNamespace, Location location) {
+        return getTemplateSignature(flow) + "|" + getComponentSignature(flow, cycle, containerNamespace, location);
+    }
+
+    /**
+     * The components are resolved the same way as when the template is generated.
+     * @param flow
+     * @param cycle
+     * @param containerNamespace
+     * @param location
+     * @return a hash of the classes and {@link Parameter}s of the components used in the flow's template.
+     */
+    @Override
+    protected String getComponentSignature(Flow flow, IRequestCycle cycle, INamespace containerNamespace, Location location) {
+        List<String> values = new ArrayList<String>();
+        for (FlowActivity activity: flow.getActivities()) {
+            if ( isNotBlank(activity.getComponentName())) {
+                values.add(getComponentSignature(cycle, containerNamespace, activity.getComponentName(), location));
+            }
+        }
+        values.add(getComponentSignature(cycle, containerNamespace, FLOW_BORDER_COMPONENT, location));
+        return FlowTemplateSignature.hash(values.toArray(new String[values.size()]));
+    }
+
+    /**
+     * @param cycle
+     * @param containerNamespace
+     * @param componentName
+     * @param location
+     * @return the {@link ComponentParameterIndex#getSignature(String)} of the component's class; blank if the component cannot be found.
+     */
+    protected String getComponentSignature(IRequestCycle cycle, INamespace containerNamespace, String componentName, Location location) {
+        IComponentSpecification specification = resolveSpecification(cycle, containerNamespace, componentName, location);
+        if ( specification == null && cycle == null ) {
+            throw new FlowTemplateWarmUp.DeferredTemplateException("Cannot resolve " + componentName + " without a request cycle", location);
+        } else {
+            return getComponentSignature(specification);
+        }
+    }
+
+    /**
+     * @param specification
+     * @return the {@link ComponentParameterIndex#getSignature(String)} of the component's class; blank if there is no specification.
+     */
+    private String getComponentSignature(IComponentSpecification specification) {
+        if ( specification == null || specification.getComponentClassName() == null ) {
+            return "";
+        } else {
+            return getParameterIndex().getSignature(specification.getComponentClassName());
+        }
+    }
+
+    /**
+     * Resolves the specification of a component used in a flow template. The specifications
+     * are memoized in the {@link FlowTemplateCache} per namespace and component name.
+     * @param cycle
+     * @param containerNamespace
+     * @param componentName may have a library prefix ( i.e. "flow:FlowBorder" )
+     * @param location
+     * @return null if the component cannot be found.
+     */
+    protected IComponentSpecification resolveSpecification(IRequestCycle cycle, INamespace containerNamespace, String componentName, Location location) {
+        FlowTemplateCache templateCache = getTemplateCache();
+        IComponentSpecification specification = templateCache.getSpecification(containerNamespace, componentName);
+        if ( specification == null && !templateCache.isUnresolvable(containerNamespace, componentName)) {
+            FlowTemplateRecord record = getCurrentRecord();
+            if ( record != null ) {
+                record.addSpecificationResolution();
+            }
+            try {
+                specification = getComponentSpecificationLookup().resolve(cycle, containerNamespace, componentName, location).getSpecification();
+            } catch (ApplicationRuntimeException e) {
+                specification = null;
+            }
+            if ( specification != null || cycle != null ) {
+                // ahead-of-time generation ( no cycle ) does not decide a component is missing ( the template is not generated ).
+                templateCache.putSpecification(containerNamespace, componentName, specification);
+            }
+        }
+        return specification;
+    }
+
     public IMarkupWriter createMarkupWriter(PrintWriter printWriter) {
         return new MarkupWriterImpl("text/html", printWriter, new UTFMarkupFilter());
     }
 
     @Override
-    protected synchronized ComponentTemplate constructTemplateInstance(IRequestCycle cycle, char[] templateData,
-            Resource resource, IComponent component) {
-        ITemplateParserDelegate delegate = new DefaultParserDelegate(component, JWCID,
-                cycle, componentSpecificationResolver);
+    protected ComponentTemplate constructTemplateInstance(IRequestCycle cycle, char[] templateData,
+            Resource resource, INamespace namespace, IComponent component) {
+        ITemplateParserDelegate delegate = new CachingParserDelegate(component, namespace, cycle);
 
         TemplateToken[] tokens;
         try {
@@ -391,31 +630,104 @@ public class FlowAwareTemplateSourceDelegate extends FlowTemplateSourceDelegate
     }
 
     /**
-     * We have to do this by hand because at this point in the code,
-     * {@link IComponentSpecification#getRequiredParameters()} has no
-     * value.
-     * @param spec The specification of the component whose class we're interested
-     * in investigating for required params.
-     * @return list of required parameter names.
+     * Looks up the specifications of the components in the generated template ( i.e. flow:AttachFlowValidators )
+     * through {@link FlowAwareTemplateSourceDelegate#resolveSpecification(IRequestCycle, INamespace, String, Location)}
+     * so they are only resolved once per namespace.
+     *
+     * The component is null when templates are parsed ahead of time ( see {@link FlowTemplateWarmUp} ). This is fine because
+     * the generated templates only use "id@Type" components.
      */
-    private Map<String, Parameter> findParameters(IComponentSpecification spec) {
-        Map<String, Parameter> list = new LinkedHashMap<String, Parameter>();
-        try {
-            Class<?> clazz = Class.forName(spec.getComponentClassName());
-            for (Method method : clazz.getMethods()) {
-                Parameter parameter = method.getAnnotation(Parameter.class);
-                if (parameter!=null) {
-                    String name = parameter.name();
-                    if (isBlank(name)) {
-                        name = AnnotationUtils.getPropertyName(method);
-                    }
-                    list.put(name, parameter);
-                }
+    private class CachingParserDelegate extends DefaultParserDelegate {
+        private final IComponent component;
+        private final INamespace namespace;
+        private final IRequestCycle cycle;
+
+        CachingParserDelegate(IComponent component, INamespace namespace, IRequestCycle cycle) {
+            super(component, JWCID, cycle, componentSpecificationResolver);
+            this.component = component;
+            this.namespace = namespace;
+            this.cycle = cycle;
+        }
+
+        @Override
+        public boolean getKnownComponent(String componentId) {
+            return component != null && super.getKnownComponent(componentId);
+        }
+
+        @Override
+        public boolean getAllowBody(String componentId, Location location) {
+            return component == null || super.getAllowBody(componentId, location);
+        }
+
+        @Override
+        public boolean getAllowBody(String libraryId, String type, Location location) {
+            String componentName = libraryId == null? type : libraryId + ":" + type;
+            INamespace containerNamespace = namespace == null && component != null? component.getNamespace() : namespace;
+            IComponentSpecification specification = resolveSpecification(cycle, containerNamespace, componentName, location);
+            if ( specification != null ) {
+                return specification.getAllowBody();
+            } else if ( component != null ) {
+                // let tapestry report the problem.
+                return super.getAllowBody(libraryId, type, location);
+            } else {
+                throw new ApplicationRuntimeException("Cannot resolve component " + componentName, location, null);
             }
-        } catch (ClassNotFoundException e) {
-            getLog().error("while finding required parameters for "+spec, e);
         }
-        return list;
     }
 
+    /**
+     * @param parameterIndex the shared index of component parameters.
+     */
+    public void setParameterIndex(ComponentParameterIndex parameterIndex) {
+        this.parameterIndex = parameterIndex;
+    }
+
+    /**
+     * @return the parameterIndex ( created if not supplied ).
+     */
+    public ComponentParameterIndex getParameterIndex() {
+        if ( parameterIndex == null ) {
+            ComponentParameterIndex index = new ComponentParameterIndex();
+            index.setLog(getLog());
+            parameterIndex = index;
+        }
+        return parameterIndex;
+    }
+
+    /**
+     * @param componentSpecificationLookup used to resolve the components in the templates.
+     */
+    public void setComponentSpecificationLookup(ComponentSpecificationLookup componentSpecificationLookup) {
+        this.componentSpecificationLookup = componentSpecificationLookup;
+    }
+
+    /**
+     * @return the componentSpecificationLookup ( using the componentSpecificationResolver if not supplied ).
+     */
+    public ComponentSpecificationLookup getComponentSpecificationLookup() {
+        if ( componentSpecificationLookup == null ) {
+            componentSpecificationLookup = new ComponentSpecificationLookupImpl(componentSpecificationResolver);
+        }
+        return componentSpecificationLookup;
+    }
+
+    /**
+     * @param precompiledTemplates the templates generated at build time.
+     */
+    public void setPrecompiledTemplates(PrecompiledFlowTemplates precompiledTemplates) {
+        this.precompiledTemplates = precompiledTemplates;
+    }
+
+    /**
+     * @return the precompiledTemplates ( the {@link FlowTemplateCompiler} output on the classpath if not supplied ).
+     */
+    public PrecompiledFlowTemplates getPrecompiledTemplates() {
+        if ( precompiledTemplates == null ) {
+            PrecompiledFlowTemplates templates = new PrecompiledFlowTemplates();
+            templates.setLog(getLog());
+            templates.load(getClass().getClassLoader());
+            precompiledTemplates = templates;
+        }
+        return precompiledTemplates;
+    }
 }
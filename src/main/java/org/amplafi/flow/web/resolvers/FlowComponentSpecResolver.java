@@ -16,12 +16,9 @@ package org.amplafi.flow.web.resolvers;
 import java.util.Map;
 
 import org.apache.tapestry.spec.IComponentSpecification;
-import org.apache.tapestry.spec.ComponentSpecification;
 import org.apache.tapestry.IRequestCycle;
 import org.apache.hivemind.Resource;
-import org.apache.hivemind.Location;
 import org.apache.hivemind.impl.DefaultClassResolver;
-import org.apache.hivemind.impl.LocationImpl;
 import org.apache.hivemind.util.ClasspathResource;
 
 import net.sf.tacos.resolvers.ClasspathComponentSpecResolver;
@@ -39,35 +36,23 @@ import net.sf.tacos.resolvers.ClasspathComponentSpecResolver;
  */
 public class FlowComponentSpecResolver extends ClasspathComponentSpecResolver {
     private Map<Class<?>, String> templateMap;
+    private FlowSpecificationCache flowSpecificationCache;
 
+    /**
+     * The flow component specifications are created ( and remembered ) by the shared {@link FlowSpecificationCache}.
+     */
     @Override
     @SuppressWarnings("unused")
     protected IComponentSpecification doCustomSearch(IRequestCycle cycle) {
-        for (Map.Entry<Class<?>, String> entry: templateMap.entrySet()) {
-            Class<?> clazz = entry.getKey();
-            String suffix = entry.getValue();
-            if (getType().endsWith(suffix)) {
-                return installFlowComponent(clazz, suffix);
-            }
-        }
-        return null;
+        return getFlowSpecificationCache().getComponentSpecification(getType());
     }
 
-    private IComponentSpecification installFlowComponent(Class<?> clazz, String suffix) {
-        String type = getType();
-        Resource componentResource = new ClasspathResource(
-                new DefaultClassResolver(), type);
-
-        Location location = new LocationImpl(componentResource);
-        String flowName = type.substring(0, type.length() - suffix.length());
-
-        IComponentSpecification spec = new ComponentSpecification();
-        spec.setLocation(location);
-        spec.setDescription(flowName);
-        spec.setSpecificationLocation(componentResource);
-        spec.setComponentClassName(clazz.getName());
-
-        return spec;
+    /**
+     * @param type the component type ( i.e. "FooFullFlow" ).
+     * @return the resource used as the specification location of a generated flow component or page.
+     */
+    public static Resource createSpecificationResource(String type) {
+        return new ClasspathResource(new DefaultClassResolver(), type);
     }
 
     /**
@@ -83,4 +68,23 @@ public class FlowComponentSpecResolver extends ClasspathComponentSpecResolver {
     public Map<Class<?>, String> getTemplateMap() {
         return templateMap;
     }
+
+    /**
+     * @param flowSpecificationCache the flowSpecificationCache to set
+     */
+    public void setFlowSpecificationCache(FlowSpecificationCache flowSpecificationCache) {
+        this.flowSpecificationCache = flowSpecificationCache;
+    }
+
+    /**
+     * @return the flowSpecificationCache ( created from the templateMap if not supplied ).
+     */
+    public FlowSpecificationCache getFlowSpecificationCache() {
+        if ( flowSpecificationCache == null ) {
+            FlowSpecificationCache cache = new FlowSpecificationCache();
+            cache.setTemplateMap(templateMap);
+            flowSpecificationCache = cache;
+        }
+        return flowSpecificationCache;
+    }
 }
@@ -0,0 +1,59 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.hivemind.Location;
+import org.apache.hivemind.Resource;
+import org.apache.tapestry.event.ResetEventListener;
+
+/**
+ * The {@link MemoryMappedLocation}s of the generated flow components by the path of their specification resource.
+ * Filled by {@link FlowTemplateSourceDelegate#findTemplate(org.apache.tapestry.IRequestCycle, org.apache.tapestry.IComponent, java.util.Locale)}
+ * when it installs the location, so that {@link MemoryMappedLocationRenderStrategy} can find the generated template
+ * of any location without searching the namespace.
+ */
+public class FlowLocationIndex implements ResetEventListener {
+
+    private final ConcurrentMap<String, MemoryMappedLocation> locations = new ConcurrentHashMap<String, MemoryMappedLocation>();
+
+    /**
+     * @param location the location installed on a generated component specification.
+     */
+    public void put(MemoryMappedLocation location) {
+        Resource resource = location.getResource();
+        if ( resource != null ) {
+            locations.put(resource.getPath(), location);
+        }
+    }
+
+    /**
+     * @param location
+     * @return the location installed for the resource of location, or null if location is not in a generated flow component.
+     */
+    public MemoryMappedLocation get(Location location) {
+        Resource resource = location.getResource();
+        return resource == null? null : locations.get(resource.getPath());
+    }
+
+    /**
+     * @see org.apache.tapestry.event.ResetEventListener#resetEventDidOccur()
+     */
+    @Override
+    public void resetEventDidOccur() {
+        locations.clear();
+    }
+}
@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.amplafi.flow.web.resolvers.SuffixTrie.Match;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.apache.hivemind.Resource;
+import org.apache.hivemind.impl.LocationImpl;
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.event.ResetEventListener;
+import org.apache.tapestry.spec.ComponentSpecification;
+import org.apache.tapestry.spec.IComponentSpecification;
+
+/**
+ * The specifications of the generated flow components ( i.e. "fooFullFlow" ), shared by all the
+ * {@link FlowComponentSpecResolver} instances.
+ *
+ * Component types are matched against the templateMap suffixes with a {@link SuffixTrie}. The specification created
+ * for a type is kept so repeated lookups return the same instance. Types that match no suffix are not remembered: the trie
+ * lookup only walks the characters of the type, which is cheaper than a shared ( locked ) negative cache.
+ *
+ * Also keeps the page specifications of the flow pages found by {@link FlowAwareSpecResolverDelegate}, per namespace.
+ *
+ * Cleared when Tapestry's caches are reset.
+ */
+public class FlowSpecificationCache implements ResetEventListener {
+
+    private volatile SuffixTrie<Class<?>> suffixes;
+
+    private Map<Class<?>, String> templateMap;
+
+    private final ConcurrentMap<String, IComponentSpecification> componentSpecifications = new ConcurrentHashMap<String, IComponentSpecification>();
+
+    /**
+     * page specifications of flow pages, keyed by namespace and page name.
+     */
+    private final ConcurrentMap<MultiKey, IComponentSpecification> pageSpecifications = new ConcurrentHashMap<MultiKey, IComponentSpecification>();
+
+    /**
+     * @param type the component type.
+     * @return the specification of the flow component or null if type does not end with one of the templateMap suffixes.
+     */
+    public IComponentSpecification getComponentSpecification(String type) {
+        IComponentSpecification specification = componentSpecifications.get(type);
+        if ( specification == null ) {
+            Match<Class<?>> match = getSuffixes().find(type);
+            if ( match != null ) {
+                specification = createComponentSpecification(type, match.getValue(), match.getSuffix());
+                IComponentSpecification existing = componentSpecifications.putIfAbsent(type, specification);
+                if ( existing != null ) {
+                    specification = existing;
+                }
+            }
+        }
+        return specification;
+    }
+
+    /**
+     * @param namespace
+     * @param pageName
+     * @return the specification found for the flow page or null if the page has not been looked up yet.
+     */
+    public IComponentSpecification getPageSpecification(INamespace namespace, String pageName) {
+        return pageSpecifications.get(createKey(namespace, pageName));
+    }
+
+    /**
+     * @param namespace
+     * @param pageName
+     * @param specification
+     * @return the specification that is in the cache ( may have been put there by another thread ).
+     */
+    public IComponentSpecification putPageSpecification(INamespace namespace, String pageName, IComponentSpecification specification) {
+        IComponentSpecification existing = pageSpecifications.putIfAbsent(createKey(namespace, pageName), specification);
+        return existing == null? specification: existing;
+    }
+
+    /**
+     * Discard the specifications generated for the flow type ( pages found on the classpath are kept ).
+     * @param flowTypeName
+     */
+    public void evict(String flowTypeName) {
+        for(Iterator<IComponentSpecification> iterator = componentSpecifications.values().iterator(); iterator.hasNext();) {
+            if ( flowTypeName.equals(iterator.next().getDescription())) {
+                iterator.remove();
+            }
+        }
+        for(Iterator<IComponentSpecification> iterator = pageSpecifications.values().iterator(); iterator.hasNext();) {
+            IComponentSpecification specification = iterator.next();
+            if ( FlowAwareSpecResolverDelegate.ID.equals(specification.getPublicId()) && flowTypeName.equals(specification.getDescription())) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private MultiKey createKey(INamespace namespace, String pageName) {
+        return new MultiKey(namespace == null? null: namespace.getExtendedId(), pageName);
+    }
+
+    private IComponentSpecification createComponentSpecification(String type, Class<?> clazz, String suffix) {
+        Resource componentResource = FlowComponentSpecResolver.createSpecificationResource(type);
+        String flowName = type.substring(0, type.length() - suffix.length());
+
+        IComponentSpecification spec = new ComponentSpecification();
+        spec.setLocation(new LocationImpl(componentResource));
+        spec.setDescription(flowName);
+        spec.setSpecificationLocation(componentResource);
+        spec.setComponentClassName(clazz.getName());
+        return spec;
+    }
+
+    private SuffixTrie<Class<?>> getSuffixes() {
+        if ( suffixes == null ) {
+            SuffixTrie<Class<?>> trie = new SuffixTrie<Class<?>>();
+            for (Map.Entry<Class<?>, String> entry: templateMap.entrySet()) {
+                trie.put(entry.getValue(), entry.getKey());
+            }
+            suffixes = trie;
+        }
+        return suffixes;
+    }
+
+    /**
+     * @see org.apache.tapestry.event.ResetEventListener#resetEventDidOccur()
+     */
+    @Override
+    public void resetEventDidOccur() {
+        componentSpecifications.clear();
+        pageSpecifications.clear();
+    }
+
+    /**
+     * @param templateMap component class to component type suffix.
+     */
+    public void setTemplateMap(Map<Class<?>, String> templateMap) {
+        this.templateMap = templateMap;
+        this.suffixes = null;
+    }
+
+    /**
+     * @return the templateMap
+     */
+    public Map<Class<?>, String> getTemplateMap() {
+        return templateMap;
+    }
+}
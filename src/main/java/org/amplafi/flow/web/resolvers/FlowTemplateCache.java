@@ -0,0 +1,333 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.Collections;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import org.amplafi.flow.Flow;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.event.ResetEventListener;
+import org.apache.tapestry.parse.ComponentTemplate;
+import org.apache.tapestry.spec.IComponentSpecification;
+
+/**
+ * Caches the templates generated by {@link FlowTemplateSourceDelegate}.
+ *
+ * Entries are grouped by flow type name. Each group remembers the {@link Flow} definition
+ * the templates were generated from. When {@link org.amplafi.flow.FlowDefinitionsManager} hands out a
+ * different definition for the flow type, the whole group is discarded - other flows are unaffected.
+ *
+ * Within a group, templates are keyed by component type ( FullFlow component class or the FlowPage id ),
+ * namespace and locale.
+ *
+ * The template fragment generated for each activity ( the activity's "fcN@Block" ) is kept separately, per flow type and block name,
+ * together with the {@link FlowTemplateSignature} of the activity. These survive a change of the flow definition so that
+ * only the blocks of the activities that changed have to be generated again.
+ *
+ * The {@link IComponentSpecification}s of the components used in the templates ( activity components, FlowBorder, etc. )
+ * are also kept here, memoized per namespace and component name. These do not depend on the flow definitions so they
+ * are only discarded when Tapestry's caches are reset.
+ *
+ * @author patmoore
+ */
+public class FlowTemplateCache implements ResetEventListener {
+
+    private final ConcurrentMap<String, FlowTemplates> templates = new ConcurrentHashMap<String, FlowTemplates>();
+
+    /**
+     * flow type name to the generated template fragment of each activity block ( see {@link #getFragment(String, INamespace, String, String)} ).
+     */
+    private final ConcurrentMap<String, ConcurrentMap<MultiKey, Fragment>> fragments = new ConcurrentHashMap<String, ConcurrentMap<MultiKey, Fragment>>();
+
+    private final ConcurrentMap<MultiKey, IComponentSpecification> specifications = new ConcurrentHashMap<MultiKey, IComponentSpecification>();
+
+    /**
+     * components that could not be resolved ( normal for invisible flow activities ).
+     */
+    private final Set<MultiKey> unresolvable = Collections.newSetFromMap(new ConcurrentHashMap<MultiKey, Boolean>());
+
+    /**
+     * Returns the cached template, creating it if needed. If several threads ask for the same missing template at the same time,
+     * only one of them runs the creator ( generating and parsing the template ); the others wait for its result.
+     *
+     * @param flowTypeName
+     * @param flow the current definition of the flow.
+     * @param componentType
+     * @param namespace
+     * @param locale
+     * @param creator generates and parses the template.
+     * @return the cached template.
+     */
+    public CachedTemplate getOrCreate(String flowTypeName, Flow flow, String componentType, INamespace namespace, Locale locale,
+        final Callable<CachedTemplate> creator) {
+        final FlowTemplates flowTemplates = getOrCreateFlowTemplates(flowTypeName, flow);
+        final MultiKey key = createKey(componentType, namespace, locale);
+        CachedTemplate cachedTemplate = flowTemplates.templates.get(key);
+        if ( cachedTemplate == null ) {
+            FutureTask<CachedTemplate> task = new FutureTask<CachedTemplate>(new Callable<CachedTemplate>() {
+                public CachedTemplate call() throws Exception {
+                    // the template may have been finished by another thread between the get() above and the putIfAbsent() below.
+                    CachedTemplate finished = flowTemplates.templates.get(key);
+                    return finished != null? finished : creator.call();
+                }
+            });
+            FutureTask<CachedTemplate> inProgress = flowTemplates.inProgress.putIfAbsent(key, task);
+            if ( inProgress == null ) {
+                inProgress = task;
+                task.run();
+            }
+            try {
+                cachedTemplate = inProgress.get();
+                CachedTemplate existing = flowTemplates.templates.putIfAbsent(key, cachedTemplate);
+                if ( existing != null ) {
+                    cachedTemplate = existing;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ApplicationRuntimeException("interrupted while waiting for template of " + flowTypeName, e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                if ( cause instanceof RuntimeException ) {
+                    throw (RuntimeException) cause;
+                } else if ( cause instanceof Error ) {
+                    throw (Error) cause;
+                } else {
+                    throw new ApplicationRuntimeException("while creating template of " + flowTypeName, cause);
+                }
+            } finally {
+                // failures are not remembered, the next request will try again.
+                flowTemplates.inProgress.remove(key, inProgress);
+            }
+        }
+        return cachedTemplate;
+    }
+
+    /**
+     * Discard all the templates for the flow type.
+     * @param flowTypeName
+     */
+    public void evict(String flowTypeName) {
+        this.templates.remove(flowTypeName);
+        this.fragments.remove(flowTypeName);
+    }
+
+    public void clear() {
+        this.templates.clear();
+        this.fragments.clear();
+        this.specifications.clear();
+        this.unresolvable.clear();
+    }
+
+    /**
+     * @param flowTypeName
+     * @param namespace
+     * @param blockName {@link org.amplafi.flow.web.FlowWebUtils#getBlockName(int)}
+     * @param signature {@link FlowTemplateSignature#getSignature(Flow, org.amplafi.flow.FlowActivity, String)} of the activity.
+     * @return the template fragment for the activity's block or null if there is none for this signature.
+     */
+    public char[] getFragment(String flowTypeName, INamespace namespace, String blockName, String signature) {
+        ConcurrentMap<MultiKey, Fragment> flowFragments = this.fragments.get(flowTypeName);
+        if ( flowFragments != null ) {
+            Fragment fragment = flowFragments.get(new MultiKey(blockName, getNamespaceId(namespace)));
+            if ( fragment != null && fragment.signature.equals(signature)) {
+                return fragment.templateData;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replaces the fragment of the block ( only one fragment is kept per block ).
+     * @param flowTypeName
+     * @param namespace
+     * @param blockName
+     * @param signature
+     * @param templateData the fragment ( must not be modified after this ).
+     */
+    public void putFragment(String flowTypeName, INamespace namespace, String blockName, String signature, char[] templateData) {
+        ConcurrentMap<MultiKey, Fragment> flowFragments = this.fragments.get(flowTypeName);
+        if ( flowFragments == null ) {
+            ConcurrentMap<MultiKey, Fragment> created = new ConcurrentHashMap<MultiKey, Fragment>();
+            flowFragments = this.fragments.putIfAbsent(flowTypeName, created);
+            if ( flowFragments == null ) {
+                flowFragments = created;
+            }
+        }
+        flowFragments.put(new MultiKey(blockName, getNamespaceId(namespace)), new Fragment(signature, templateData));
+    }
+
+    /**
+     * @param namespace
+     * @param componentName
+     * @return null if the specification has not been resolved or could not be resolved ( see {@link #isUnresolvable(INamespace, String)} ).
+     */
+    public IComponentSpecification getSpecification(INamespace namespace, String componentName) {
+        return this.specifications.get(createKey(namespace, componentName));
+    }
+
+    /**
+     * @param namespace
+     * @param componentName
+     * @return true if an earlier attempt to resolve the component failed.
+     */
+    public boolean isUnresolvable(INamespace namespace, String componentName) {
+        return this.unresolvable.contains(createKey(namespace, componentName));
+    }
+
+    /**
+     * @param namespace
+     * @param componentName
+     * @param specification null if the component could not be resolved.
+     */
+    public void putSpecification(INamespace namespace, String componentName, IComponentSpecification specification) {
+        MultiKey key = createKey(namespace, componentName);
+        if ( specification == null ) {
+            this.unresolvable.add(key);
+        } else {
+            this.specifications.put(key, specification);
+        }
+    }
+
+    /**
+     * Discard the component specifications but keep the templates and fragments. Used by {@link FlowTemplateInvalidator}
+     * when it resets Tapestry's caches after evicting the changed flows: the templates of the other flows are still good
+     * ( stale templates are detected by their definition anyway ).
+     */
+    public void resetKeepingTemplates() {
+        this.specifications.clear();
+        this.unresolvable.clear();
+    }
+
+    /**
+     * Tapestry caches have been cleared, so clear this cache as well.
+     * @see org.apache.tapestry.event.ResetEventListener#resetEventDidOccur()
+     */
+    @Override
+    public void resetEventDidOccur() {
+        clear();
+    }
+
+    /**
+     * The cached group is replaced only if it is the one this caller found to be stale. If another thread has cached a group
+     * for yet another definition in the meantime, that group is left alone ( it is not known which definition is the current one )
+     * and the templates of this caller are not cached, so two definitions in use at the same time cannot keep replacing each other.
+     * @param flowTypeName
+     * @param flow
+     * @return the templates generated from this flow definition.
+     */
+    private FlowTemplates getOrCreateFlowTemplates(String flowTypeName, Flow flow) {
+        FlowTemplates stale = this.templates.get(flowTypeName);
+        if ( stale != null && stale.flow == flow ) {
+            return stale;
+        }
+        FlowTemplates created = new FlowTemplates(flow);
+        boolean cached;
+        if ( stale == null ) {
+            cached = this.templates.putIfAbsent(flowTypeName, created) == null;
+        } else {
+            // definition has changed - templates are stale.
+            cached = this.templates.replace(flowTypeName, stale, created);
+        }
+        if ( !cached ) {
+            FlowTemplates existing = this.templates.get(flowTypeName);
+            if ( existing != null && existing.flow == flow ) {
+                return existing;
+            }
+        }
+        return created;
+    }
+
+    private MultiKey createKey(String componentType, INamespace namespace, Locale locale) {
+        return new MultiKey(componentType, getNamespaceId(namespace), locale);
+    }
+
+    private MultiKey createKey(INamespace namespace, String componentName) {
+        return new MultiKey(getNamespaceId(namespace), componentName);
+    }
+
+    private String getNamespaceId(INamespace namespace) {
+        return namespace == null? null: namespace.getExtendedId();
+    }
+
+    /**
+     * All the templates generated from a single {@link Flow} definition.
+     */
+    private static class FlowTemplates {
+        private final Flow flow;
+        private final ConcurrentMap<MultiKey, CachedTemplate> templates = new ConcurrentHashMap<MultiKey, CachedTemplate>();
+        /**
+         * templates that are being generated/parsed right now.
+         */
+        private final ConcurrentMap<MultiKey, FutureTask<CachedTemplate>> inProgress = new ConcurrentHashMap<MultiKey, FutureTask<CachedTemplate>>();
+        FlowTemplates(Flow flow) {
+            this.flow = flow;
+        }
+    }
+
+    private static class Fragment {
+        private final String signature;
+        private final char[] templateData;
+        Fragment(String signature, char[] templateData) {
+            this.signature = signature;
+            this.templateData = templateData;
+        }
+    }
+
+    /**
+     * The generated content and the parsed {@link ComponentTemplate}.
+     */
+    public static class CachedTemplate {
+        private final String content;
+        private final char[] templateData;
+        private final ComponentTemplate template;
+        public CachedTemplate(String content, ComponentTemplate template) {
+            this.content = content;
+            this.templateData = null;
+            this.template = template;
+        }
+        /**
+         * @param templateData the chars the template was parsed from ( not copied ).
+         * @param template
+         */
+        public CachedTemplate(char[] templateData, ComponentTemplate template) {
+            this.content = null;
+            this.templateData = templateData;
+            this.template = template;
+        }
+        /**
+         * @return the content ( created from the template chars each time, so that it is not kept for the life of the cache ).
+         */
+        public String getContent() {
+            return content != null? content : new String(templateData);
+        }
+        /**
+         * @return the chars the template was parsed from ( not a copy, must not be changed ).
+         */
+        public char[] getTemplateData() {
+            return templateData != null? templateData : template.getTemplateData();
+        }
+        public ComponentTemplate getTemplate() {
+            return template;
+        }
+    }
+}
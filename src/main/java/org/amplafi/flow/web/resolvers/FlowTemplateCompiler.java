@@ -0,0 +1,378 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeSet;
+
+import org.amplafi.flow.Flow;
+import org.amplafi.flow.FlowDefinitionsManager;
+import org.apache.commons.collections.CollectionUtils;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.ClassResolver;
+import org.apache.hivemind.Location;
+import org.apache.hivemind.Registry;
+import org.apache.hivemind.Resource;
+import org.apache.hivemind.impl.DefaultClassResolver;
+import org.apache.hivemind.impl.RegistryBuilder;
+import org.apache.hivemind.util.ClasspathResource;
+import org.apache.hivemind.util.FileResource;
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.IRequestCycle;
+import org.apache.tapestry.parse.SpecificationParser;
+import org.apache.tapestry.spec.ComponentSpecification;
+import org.apache.tapestry.spec.IComponentSpecification;
+import org.apache.tapestry.spec.ILibrarySpecification;
+
+import static org.apache.commons.lang.StringUtils.*;
+
+/**
+ * Generates the FullFlow component templates of all the flow definitions when the application is built, so that they do not have to be
+ * generated when the application runs. This library has no flow definitions of its own: the compiler runs in the application's build,
+ * with the application's classes, libraries and flow definitions on the classpath:
+ *
+ * <pre>
+ * java org.amplafi.flow.web.resolvers.FlowTemplateCompiler outputDirectory applicationSpecification [contextRoot]
+ * </pre>
+ *
+ * i.e. in the application's pom:
+ *
+ * <pre>
+ * &lt;plugin&gt;
+ *     &lt;groupId&gt;org.codehaus.mojo&lt;/groupId&gt;
+ *     &lt;artifactId&gt;exec-maven-plugin&lt;/artifactId&gt;
+ *     &lt;executions&gt;
+ *         &lt;execution&gt;
+ *             &lt;id&gt;compile-flow-templates&lt;/id&gt;
+ *             &lt;phase&gt;process-classes&lt;/phase&gt;
+ *             &lt;goals&gt;&lt;goal&gt;java&lt;/goal&gt;&lt;/goals&gt;
+ *             &lt;configuration&gt;
+ *                 &lt;mainClass&gt;org.amplafi.flow.web.resolvers.FlowTemplateCompiler&lt;/mainClass&gt;
+ *                 &lt;classpathScope&gt;runtime&lt;/classpathScope&gt;
+ *                 &lt;arguments&gt;
+ *                     &lt;argument&gt;${project.build.outputDirectory}&lt;/argument&gt;
+ *                     &lt;argument&gt;${basedir}/src/main/webapp/WEB-INF/example.application&lt;/argument&gt;
+ *                     &lt;argument&gt;${basedir}/src/main/webapp&lt;/argument&gt;
+ *                 &lt;/arguments&gt;
+ *             &lt;/configuration&gt;
+ *         &lt;/execution&gt;
+ *     &lt;/executions&gt;
+ * &lt;/plugin&gt;
+ * </pre>
+ *
+ * The flow definitions are those of the application's {@link FlowDefinitionsManager} service: the hivemind registry is built from the
+ * hivemodules on the classpath, as the application builds it. If there is more than one FlowDefinitionsManager service, the id of the one
+ * to use is given with the {@link #FLOW_DEFINITIONS_MANAGER} system property. Other tools can pass their own FlowDefinitionsManager to the
+ * constructor instead.
+ * The applicationSpecification is a file or a classpath resource; the application's name is the file name without the extension.
+ *
+ * Writes the templates and the {@link PrecompiledFlowTemplates#MANIFEST manifest} to outputDirectory ( normally target/classes ).
+ *
+ * Components are resolved the way Tapestry's ComponentSpecificationResolver resolves them: the component types declared in the
+ * application and library specifications, the .jwc files next to the specification ( and, for the application's components, in
+ * contextRoot's WEB-INF/application name, WEB-INF and contextRoot ), the classes in the specification's
+ * "org.apache.tapestry.component-class-packages" and the component types of the Tapestry framework. Flows using components that
+ * cannot be found this way are left out and are generated when the application runs as before. The manifest records the classes and
+ * {@link org.apache.tapestry.annotations.Parameter}s of the components used, so a precompiled template is not used if the running
+ * application resolves a component to a different class or the component's parameters have changed.
+ *
+ * The "debug" and "additionalUpdateComponents" FlowBorder settings are read from the system properties with the same names as
+ * the hivemind symbols and must match the application's settings, otherwise the precompiled templates are not used.
+ */
+public class FlowTemplateCompiler {
+
+    public static final String DEBUG_CONDITION = "amplafi.flow.tapestry4.pageTemplate.debugCondition";
+
+    public static final String ADDITIONAL_UPDATE_COMPONENTS = "amplafi.flow.tapestry4.pageTemplate.additionalUpdateComponents";
+
+    public static final String FLOW_DEFINITIONS_MANAGER = "amplafi.flow.tapestry4.flowDefinitionsManager";
+
+    public static final String COMPONENT_CLASS_PACKAGES = "org.apache.tapestry.component-class-packages";
+
+    public static final String FRAMEWORK_LIBRARY = "/org/apache/tapestry/Framework.library";
+
+    private static final String COMPONENT_SPECIFICATION_SUFFIX = ".jwc";
+
+    private final FlowDefinitionsManager flowDefinitionsManager;
+
+    private final File outputDirectory;
+
+    private final ClassResolver classResolver = new DefaultClassResolver();
+
+    private final SpecificationParser specificationParser = new SpecificationParser(classResolver);
+
+    private final SpecificationNamespace applicationNamespace;
+
+    private final SpecificationNamespace frameworkNamespace;
+
+    /**
+     * where the application's .jwc files are looked for after the application specification's directory.
+     */
+    private final List<Resource> applicationLocations = new ArrayList<Resource>();
+
+    private final Resource contextRoot;
+
+    private final Log log = LogFactory.getLog(FlowTemplateCompiler.class);
+
+    /**
+     * @param flowDefinitionsManager
+     * @param outputDirectory
+     * @param applicationSpecification
+     * @param contextRoot the root of the web application ( may be null ).
+     */
+    public FlowTemplateCompiler(FlowDefinitionsManager flowDefinitionsManager, File outputDirectory, Resource applicationSpecification,
+        Resource contextRoot) {
+        this.flowDefinitionsManager = flowDefinitionsManager;
+        this.outputDirectory = outputDirectory;
+        this.contextRoot = contextRoot;
+        this.applicationNamespace = new SpecificationNamespace(specificationParser.parseApplicationSpecification(applicationSpecification), true);
+        this.frameworkNamespace = new SpecificationNamespace(
+            specificationParser.parseLibrarySpecification(new ClasspathResource(classResolver, FRAMEWORK_LIBRARY)), false);
+        if ( contextRoot != null ) {
+            String applicationName = substringBeforeLast(applicationSpecification.getName(), ".");
+            applicationLocations.add(contextRoot.getRelativeResource("WEB-INF/" + applicationName + "/"));
+            applicationLocations.add(contextRoot.getRelativeResource("WEB-INF/"));
+            applicationLocations.add(contextRoot);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if ( args.length < 2 ) {
+            throw new IllegalArgumentException("usage: " + FlowTemplateCompiler.class.getName()
+                + " outputDirectory applicationSpecification [contextRoot]");
+        }
+        Resource applicationSpecification = new File(args[1]).isFile()? new FileResource(args[1])
+            : new ClasspathResource(new DefaultClassResolver(), args[1]);
+        Resource contextRoot = args.length > 2? new FileResource(args[2].endsWith("/")? args[2] : args[2] + "/") : null;
+        Registry registry = RegistryBuilder.constructDefaultRegistry();
+        try {
+            String serviceId = System.getProperty(FLOW_DEFINITIONS_MANAGER);
+            FlowDefinitionsManager flowDefinitionsManager = isBlank(serviceId)? (FlowDefinitionsManager) registry.getService(FlowDefinitionsManager.class)
+                : (FlowDefinitionsManager) registry.getService(serviceId, FlowDefinitionsManager.class);
+            FlowTemplateCompiler compiler = new FlowTemplateCompiler(flowDefinitionsManager, new File(args[0]), applicationSpecification, contextRoot);
+            compiler.compile();
+        } finally {
+            registry.shutdown();
+        }
+    }
+
+    /**
+     * Generate and write the templates.
+     * @return the number of flows precompiled.
+     * @throws IOException
+     */
+    public int compile() throws IOException {
+        FlowAwareTemplateSourceDelegate delegate = createTemplateSourceDelegate();
+        Properties manifest = new Properties();
+        for(String flowTypeName: new TreeSet<String>(flowDefinitionsManager.getFlowDefinitions().keySet())) {
+            Flow flow = flowDefinitionsManager.getFlowDefinition(flowTypeName);
+            if ( flow == null || CollectionUtils.isEmpty(flow.getActivities())) {
+                continue;
+            }
+            String content;
+            String signature;
+            try {
+                content = delegate.createComponentTemplate(flow, null, null, null);
+                signature = delegate.getPrecompiledSignature(flow, null, null, null);
+            } catch (FlowTemplateWarmUp.DeferredTemplateException e) {
+                log.info(flowTypeName + ": " + e.getMessage() + ", left for runtime generation");
+                continue;
+            } catch (RuntimeException e) {
+                log.warn(flowTypeName + ": cannot generate template, left for runtime generation", e);
+                continue;
+            }
+            String name = flow.getFlowPropertyProviderName();
+            String resource = PrecompiledFlowTemplates.DIRECTORY + name + ".html";
+            FileUtils.writeStringToFile(new File(outputDirectory, resource), content, "UTF-8");
+            manifest.setProperty(name + PrecompiledFlowTemplates.SIGNATURE_SUFFIX, signature);
+            manifest.setProperty(name + PrecompiledFlowTemplates.TEMPLATE_SUFFIX, resource);
+        }
+        store(manifest, PrecompiledFlowTemplates.MANIFEST);
+        log.info(manifest.size() / 2 + " flow templates precompiled to " + outputDirectory);
+        return manifest.size() / 2;
+    }
+
+    /**
+     * @return a delegate that generates the templates without a running application, with no precompiled templates.
+     */
+    FlowAwareTemplateSourceDelegate createTemplateSourceDelegate() {
+        OfflineTemplateSourceDelegate delegate = new OfflineTemplateSourceDelegate();
+        delegate.setLog(log);
+        delegate.setFlowDefinitionsManager(flowDefinitionsManager);
+        delegate.setPrecompiledTemplates(new PrecompiledFlowTemplates());
+        delegate.setDebugCondition(System.getProperty(DEBUG_CONDITION, "ognl:page.inDebug"));
+        delegate.setAdditionalUpdateComponents(System.getProperty(ADDITIONAL_UPDATE_COMPONENTS, "ognl:{'footer'}"));
+        return delegate;
+    }
+
+    /**
+     * @param componentName may have a library prefix ( i.e. "flow:FlowBorder" ).
+     * @return the specification of the component as found in the application namespace, null if the component cannot be found.
+     */
+    public IComponentSpecification resolve(String componentName) {
+        SpecificationNamespace namespace = applicationNamespace;
+        String type = componentName;
+        int colon = componentName.indexOf(':');
+        if ( colon > 0 ) {
+            namespace = applicationNamespace.getChild(componentName.substring(0, colon));
+            type = componentName.substring(colon + 1);
+        }
+        if ( namespace == null ) {
+            return null;
+        }
+        IComponentSpecification specification = namespace.findDeclaredComponent(type);
+        if ( specification == null ) {
+            specification = namespace.searchForComponent(type);
+        }
+        if ( specification == null ) {
+            specification = frameworkNamespace.findDeclaredComponent(type);
+        }
+        return specification;
+    }
+
+    private void store(Properties properties, String resource) throws IOException {
+        File file = new File(outputDirectory, resource);
+        file.getParentFile().mkdirs();
+        OutputStream stream = new FileOutputStream(file);
+        try {
+            properties.store(stream, "generated by " + getClass().getName());
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+    }
+
+    /**
+     * Absolute paths in a specification read from a file are in the context root ( if there is one ) or on the classpath.
+     * @param base
+     * @param path
+     * @return the resource
+     */
+    private Resource locate(Resource base, String path) {
+        if ( path.startsWith("/") && base instanceof FileResource ) {
+            if ( contextRoot != null ) {
+                Resource inContext = contextRoot.getRelativeResource(path.substring(1));
+                if ( inContext.getResourceURL() != null ) {
+                    return inContext;
+                }
+            }
+            return new ClasspathResource(classResolver, path);
+        } else {
+            return base.getRelativeResource(path);
+        }
+    }
+
+    /**
+     * The application or a library, as read from its specification.
+     */
+    private class SpecificationNamespace {
+        private final ILibrarySpecification specification;
+        private final boolean application;
+        private final Map<String, SpecificationNamespace> children = new HashMap<String, SpecificationNamespace>();
+
+        SpecificationNamespace(ILibrarySpecification specification, boolean application) {
+            this.specification = specification;
+            this.application = application;
+        }
+
+        /**
+         * @param libraryId nested library ids are separated by '.'.
+         * @return null if there is no such library.
+         */
+        SpecificationNamespace getChild(String libraryId) {
+            String childId = substringBefore(libraryId, ".");
+            SpecificationNamespace child = children.get(childId);
+            if ( child == null ) {
+                String path = specification.getLibrarySpecificationPath(childId);
+                if ( path == null ) {
+                    return null;
+                }
+                child = new SpecificationNamespace(
+                    specificationParser.parseLibrarySpecification(locate(specification.getSpecificationLocation(), path)), false);
+                children.put(childId, child);
+            }
+            return childId.length() == libraryId.length()? child : child.getChild(libraryId.substring(childId.length() + 1));
+        }
+
+        /**
+         * @param type
+         * @return the specification of a component type declared in the specification.
+         */
+        IComponentSpecification findDeclaredComponent(String type) {
+            String path = specification.getComponentSpecificationPath(type);
+            return path == null? null : specificationParser.parseComponentSpecification(locate(specification.getSpecificationLocation(), path));
+        }
+
+        /**
+         * @param type
+         * @return the specification of an undeclared component ( .jwc file or component class ).
+         */
+        IComponentSpecification searchForComponent(String type) {
+            String fileName = type + COMPONENT_SPECIFICATION_SUFFIX;
+            List<Resource> candidates = new ArrayList<Resource>();
+            candidates.add(specification.getSpecificationLocation().getRelativeResource(fileName));
+            if ( application ) {
+                for(Resource location: applicationLocations) {
+                    candidates.add(location.getRelativeResource(fileName));
+                }
+            }
+            for(Resource candidate: candidates) {
+                if ( candidate.getResourceURL() != null ) {
+                    return specificationParser.parseComponentSpecification(candidate);
+                }
+            }
+            String packages = specification.getProperty(COMPONENT_CLASS_PACKAGES);
+            if ( isNotBlank(packages)) {
+                for(String packageName: split(packages, ", ")) {
+                    String className = packageName + "." + type.replace('/', '.');
+                    try {
+                        Class.forName(className, false, getClass().getClassLoader());
+                        IComponentSpecification found = new ComponentSpecification();
+                        found.setComponentClassName(className);
+                        return found;
+                    } catch (ClassNotFoundException e) {
+                        // try the next package
+                    }
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Resolves components with {@link FlowTemplateCompiler#resolve(String)} instead of a running Tapestry application.
+     */
+    private class OfflineTemplateSourceDelegate extends FlowAwareTemplateSourceDelegate {
+        private final Map<String, IComponentSpecification> resolved = new HashMap<String, IComponentSpecification>();
+
+        @Override
+        protected IComponentSpecification resolveSpecification(IRequestCycle cycle, INamespace containerNamespace,
+            String componentName, Location location) {
+            if ( !resolved.containsKey(componentName)) {
+                resolved.put(componentName, resolve(componentName));
+            }
+            return resolved.get(componentName);
+        }
+    }
+}
@@ -0,0 +1,375 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+import org.amplafi.flow.Flow;
+import org.amplafi.flow.FlowActivity;
+import org.amplafi.flow.FlowActivityImplementor;
+import org.amplafi.flow.web.resolvers.FlowTemplateCache.CachedTemplate;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+import org.apache.hivemind.Location;
+import org.apache.hivemind.Resource;
+import org.apache.hivemind.impl.LocationImpl;
+import org.apache.tapestry.parse.CloseToken;
+import org.apache.tapestry.parse.ComponentTemplate;
+import org.apache.tapestry.parse.OpenToken;
+import org.apache.tapestry.parse.TemplateToken;
+import org.apache.tapestry.parse.TemplateTokenFactory;
+import org.apache.tapestry.parse.TextToken;
+import org.apache.tapestry.parse.TokenType;
+
+import static org.apache.commons.lang.StringUtils.*;
+
+/**
+ * Keeps the generated flow templates and their parsed {@link TemplateToken}s in a local directory so that
+ * a restarted application does not have to generate and parse them again.
+ *
+ * Each template is a file in {@link #getCacheDirectory()}. The file name is made from the flow type name and a hash of
+ * the cache key ( flow definition signature, the classes and parameters of the components the template uses, component type,
+ * namespace and locale ), so a changed definition or component simply does not find its old file. Files are read through a memory-mapped buffer.
+ *
+ * File format ( big-endian ): magic, version, content, the indices of the activities found to be invisible
+ * when the template was generated, then the tokens. Strings are an int length ( -1 for null ) followed by the chars.
+ * Only text, open and close tokens are written ( that is all the generated templates have ); templates with other tokens
+ * are not written.
+ *
+ * Disabled when no cache directory is set.
+ */
+public class FlowTemplateDiskCache {
+
+    private static final int MAGIC = 0x46545043;
+
+    private static final int VERSION = 1;
+
+    private static final String SUFFIX = ".tokens";
+
+    private static final byte TEXT = 0;
+
+    private static final byte OPEN = 1;
+
+    private static final byte CLOSE = 2;
+
+    private File cacheDirectory;
+
+    private final TemplateTokenFactory tokenFactory = new TemplateTokenFactory();
+
+    private Log log;
+
+    /**
+     * @return true if a cache directory is configured.
+     */
+    public boolean isEnabled() {
+        return cacheDirectory != null;
+    }
+
+    /**
+     * @param flowTypeName
+     * @param key
+     * @param resource the resource the template locations refer to.
+     * @param flow the activities found to be invisible when the template was generated are marked invisible again.
+     * @return the template or null if not in the cache ( or the file could not be read ). A damaged file is deleted so the
+     * template is generated and written again.
+     */
+    public CachedTemplate load(String flowTypeName, String key, Resource resource, Flow flow) {
+        File file = getFile(flowTypeName, key);
+        if ( !file.isFile()) {
+            return null;
+        }
+        FileInputStream stream = null;
+        boolean damaged = false;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if ( buffer.getInt() != MAGIC || buffer.getInt() != VERSION) {
+                getLog().info(file + ": not a template cache file for this version, ignoring");
+                return null;
+            }
+            String content = readString(buffer);
+            char[] templateData = content.toCharArray();
+            int[] invisible = new int[buffer.getInt()];
+            for (int i = 0; i < invisible.length; i++) {
+                invisible[i] = buffer.getInt();
+            }
+            TemplateToken[] tokens = new TemplateToken[buffer.getInt()];
+            for (int i = 0; i < tokens.length; i++) {
+                tokens[i] = readToken(buffer, templateData, resource);
+            }
+            markInvisible(flow, invisible);
+            return new CachedTemplate(content, new ComponentTemplate(templateData, tokens));
+        } catch (IOException e) {
+            getLog().warn(file + ": cannot read cached template", e);
+        } catch (RuntimeException e) {
+            // truncated or corrupt file ( i.e. BufferUnderflowException, NegativeArraySizeException, IndexOutOfBoundsException ).
+            getLog().warn(file + ": damaged cached template, deleting it", e);
+            damaged = true;
+        } finally {
+            IOUtils.closeQuietly(stream);
+        }
+        if ( damaged ) {
+            file.delete();
+        }
+        return null;
+    }
+
+    /**
+     * Write the template. The file is written under a temporary name and then renamed so readers never see a partial file.
+     * @param flowTypeName
+     * @param key
+     * @param cachedTemplate
+     * @param flow
+     */
+    public void store(String flowTypeName, String key, CachedTemplate cachedTemplate, Flow flow) {
+        ComponentTemplate template = cachedTemplate.getTemplate();
+        int count = template.getTokenCount();
+        for (int i = 0; i < count; i++) {
+            TokenType type = template.getToken(i).getType();
+            if ( type != TokenType.TEXT && type != TokenType.OPEN && type != TokenType.CLOSE) {
+                return;
+            }
+        }
+        File file = getFile(flowTypeName, key);
+        File temporary = new File(file.getPath() + "." + Thread.currentThread().getId() + ".tmp");
+        DataOutputStream out = null;
+        try {
+            cacheDirectory.mkdirs();
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(out, cachedTemplate.getContent());
+            List<Integer> invisible = getInvisible(flow);
+            out.writeInt(invisible.size());
+            for(Integer index: invisible) {
+                out.writeInt(index);
+            }
+            out.writeInt(count);
+            for (int i = 0; i < count; i++) {
+                writeToken(out, template.getToken(i));
+            }
+            out.close();
+            out = null;
+            if ( !temporary.renameTo(file)) {
+                // another node/thread won.
+                temporary.delete();
+            }
+        } catch (IOException e) {
+            getLog().warn(file + ": cannot write cached template", e);
+            IOUtils.closeQuietly(out);
+            temporary.delete();
+        }
+    }
+
+    /**
+     * Delete all the cached files.
+     */
+    public void clear() {
+        if ( isEnabled()) {
+            File[] files = cacheDirectory.listFiles();
+            if ( files != null ) {
+                for(File file: files) {
+                    if ( file.getName().endsWith(SUFFIX)) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Delete the cached files of the flow type ( files for old definitions are never read again ).
+     * @param flowTypeName
+     */
+    public void evict(String flowTypeName) {
+        if ( isEnabled()) {
+            String prefix = getFilePrefix(flowTypeName);
+            File[] files = cacheDirectory.listFiles();
+            if ( files != null ) {
+                for(File file: files) {
+                    String name = file.getName();
+                    // the hash has no '-', so "foo-" does not match the files of "foo-bar"
+                    if ( name.startsWith(prefix) && name.endsWith(SUFFIX) && name.indexOf('-', prefix.length()) < 0) {
+                        file.delete();
+                    }
+                }
+            }
+        }
+    }
+
+    private File getFile(String flowTypeName, String key) {
+        String hash = FlowTemplateSignature.hash(key);
+        return new File(cacheDirectory, getFilePrefix(flowTypeName) + hash + SUFFIX);
+    }
+
+    private String getFilePrefix(String flowTypeName) {
+        return flowTypeName.replaceAll("[^A-Za-z0-9_.-]", "_") + "-";
+    }
+
+    private void writeToken(DataOutputStream out, TemplateToken token) throws IOException {
+        TokenType type = token.getType();
+        if ( type == TokenType.TEXT ) {
+            TextToken textToken = (TextToken) token;
+            out.writeByte(TEXT);
+            out.writeInt(textToken.getStartIndex());
+            out.writeInt(textToken.getEndIndex());
+        } else if ( type == TokenType.OPEN ) {
+            OpenToken openToken = (OpenToken) token;
+            out.writeByte(OPEN);
+            writeString(out, openToken.getTag());
+            writeString(out, openToken.getId());
+            writeString(out, openToken.getComponentType());
+            @SuppressWarnings("unchecked")
+            Map<String, String> attributes = openToken.getAttributesMap();
+            out.writeInt(attributes == null? 0: attributes.size());
+            if ( attributes != null ) {
+                for(Map.Entry<String, String> attribute: attributes.entrySet()) {
+                    writeString(out, attribute.getKey());
+                    writeString(out, attribute.getValue());
+                }
+            }
+        } else {
+            out.writeByte(CLOSE);
+            writeString(out, ((CloseToken) token).getTag());
+        }
+        Location location = token.getLocation();
+        out.writeInt(location == null? -1: location.getLineNumber());
+        out.writeInt(location == null? -1: location.getColumnNumber());
+    }
+
+    private TemplateToken readToken(ByteBuffer buffer, char[] templateData, Resource resource) throws IOException {
+        byte type = buffer.get();
+        switch(type) {
+        case TEXT:
+            int start = buffer.getInt();
+            int end = buffer.getInt();
+            return tokenFactory.createTextToken(templateData, start, end, readLocation(buffer, resource));
+        case OPEN:
+            String tag = readString(buffer);
+            String id = readString(buffer);
+            String componentType = readString(buffer);
+            int attributeCount = buffer.getInt();
+            String[] attributes = new String[attributeCount * 2];
+            for (int i = 0; i < attributes.length; i++) {
+                attributes[i] = readString(buffer);
+            }
+            OpenToken openToken = tokenFactory.createOpenToken(tag, id, componentType, readLocation(buffer, resource));
+            for (int i = 0; i < attributes.length; i += 2) {
+                openToken.addAttribute(attributes[i], attributes[i+1]);
+            }
+            return openToken;
+        case CLOSE:
+            String closeTag = readString(buffer);
+            return tokenFactory.createCloseToken(closeTag, readLocation(buffer, resource));
+        default:
+            throw new IOException("unknown token type " + type);
+        }
+    }
+
+    private Location readLocation(ByteBuffer buffer, Resource resource) {
+        int line = buffer.getInt();
+        int column = buffer.getInt();
+        return line < 0? null: new LocationImpl(resource, line, column);
+    }
+
+    private void writeString(DataOutputStream out, String value) throws IOException {
+        if ( value == null ) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(value.length());
+            out.writeChars(value);
+        }
+    }
+
+    private String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if ( length < 0 ) {
+            return null;
+        } else if ( length > buffer.remaining() / 2 ) {
+            // damaged file: do not allocate for a length that is not there.
+            throw new BufferUnderflowException();
+        }
+        char[] chars = new char[length];
+        buffer.asCharBuffer().get(chars);
+        buffer.position(buffer.position() + length * 2);
+        return new String(chars);
+    }
+
+    private List<Integer> getInvisible(Flow flow) {
+        List<Integer> invisible = new ArrayList<Integer>();
+        for(FlowActivity activity: flow.getActivities()) {
+            if ( activity.isInvisible() && isNotBlank(activity.getComponentName())) {
+                invisible.add(activity.getIndex());
+            }
+        }
+        return invisible;
+    }
+
+    private void markInvisible(Flow flow, int[] invisible) {
+        for(int index: invisible) {
+            for(FlowActivity activity: flow.getActivities()) {
+                if ( activity.getIndex() == index ) {
+                    ((FlowActivityImplementor)activity).setInvisible(true);
+                }
+            }
+        }
+    }
+
+    /**
+     * @param cacheDirectory the directory for the cached templates; null to disable.
+     */
+    public void setCacheDirectory(File cacheDirectory) {
+        this.cacheDirectory = cacheDirectory;
+    }
+
+    /**
+     * @param cacheDirectory path of the directory for the cached templates; blank to disable.
+     */
+    public void setCacheDirectoryPath(String cacheDirectory) {
+        this.cacheDirectory = isBlank(cacheDirectory)? null: new File(cacheDirectory);
+    }
+
+    /**
+     * @return the cacheDirectory
+     */
+    public File getCacheDirectory() {
+        return cacheDirectory;
+    }
+
+    /**
+     * @param log the log to set
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the log
+     */
+    public Log getLog() {
+        return log;
+    }
+}
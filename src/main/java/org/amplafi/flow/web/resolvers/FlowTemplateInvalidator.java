@@ -0,0 +1,162 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.Arrays;
+
+import org.apache.commons.logging.Log;
+import org.apache.tapestry.services.ResetEventHub;
+
+/**
+ * Evicts what this module has cached for flow definitions that the {@link org.amplafi.flow.FlowDefinitionsManager}
+ * has registered, replaced or removed. Call {@link #flowDefinitionsChanged(String...)} from the code that changes the
+ * definitions, so that Tapestry caching does not have to be disabled to see the changes.
+ *
+ * The generated templates, template fragments, disk cache files and specifications of the changed flows are evicted.
+ * Tapestry 4 has no way to evict single pages from its page pool or single templates from its template source,
+ * so when {@link #isResetTapestryCaches()} Tapestry's caches are then reset. The {@link FlowTemplateCache} is not
+ * notified of that reset but keeps the generated templates of the flows that did not change
+ * ( {@link FlowTemplateCache#resetKeepingTemplates()} ), so only the changed flows are generated again.
+ */
+public class FlowTemplateInvalidator {
+
+    private FlowTemplateCache templateCache;
+
+    private FlowTemplateDiskCache templateDiskCache;
+
+    private FlowSpecificationCache flowSpecificationCache;
+
+    private ResetEventHub resetEventHub;
+
+    private boolean resetTapestryCaches = true;
+
+    private Log log;
+
+    /**
+     * @param flowTypeNames the flows whose definitions have been registered, replaced or removed.
+     */
+    public void flowDefinitionsChanged(String... flowTypeNames) {
+        for(String flowTypeName: flowTypeNames) {
+            if ( templateCache != null ) {
+                templateCache.evict(flowTypeName);
+            }
+            if ( templateDiskCache != null ) {
+                templateDiskCache.evict(flowTypeName);
+            }
+            if ( flowSpecificationCache != null ) {
+                flowSpecificationCache.evict(flowTypeName);
+            }
+        }
+        if ( getLog() != null && getLog().isDebugEnabled()) {
+            getLog().debug("evicted flows " + Arrays.asList(flowTypeNames));
+        }
+        if ( resetTapestryCaches && resetEventHub != null ) {
+            if ( templateCache == null ) {
+                resetEventHub.fireResetEvent();
+            } else {
+                resetEventHub.removeResetEventListener(templateCache);
+                try {
+                    resetEventHub.fireResetEvent();
+                } finally {
+                    resetEventHub.addResetEventListener(templateCache);
+                }
+                templateCache.resetKeepingTemplates();
+            }
+        }
+    }
+
+    /**
+     * @param templateCache the templateCache to set
+     */
+    public void setTemplateCache(FlowTemplateCache templateCache) {
+        this.templateCache = templateCache;
+    }
+
+    /**
+     * @return the templateCache
+     */
+    public FlowTemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * @param templateDiskCache the templateDiskCache to set
+     */
+    public void setTemplateDiskCache(FlowTemplateDiskCache templateDiskCache) {
+        this.templateDiskCache = templateDiskCache;
+    }
+
+    /**
+     * @return the templateDiskCache
+     */
+    public FlowTemplateDiskCache getTemplateDiskCache() {
+        return templateDiskCache;
+    }
+
+    /**
+     * @param flowSpecificationCache the flowSpecificationCache to set
+     */
+    public void setFlowSpecificationCache(FlowSpecificationCache flowSpecificationCache) {
+        this.flowSpecificationCache = flowSpecificationCache;
+    }
+
+    /**
+     * @return the flowSpecificationCache
+     */
+    public FlowSpecificationCache getFlowSpecificationCache() {
+        return flowSpecificationCache;
+    }
+
+    /**
+     * @param resetEventHub the resetEventHub to set
+     */
+    public void setResetEventHub(ResetEventHub resetEventHub) {
+        this.resetEventHub = resetEventHub;
+    }
+
+    /**
+     * @return the resetEventHub
+     */
+    public ResetEventHub getResetEventHub() {
+        return resetEventHub;
+    }
+
+    /**
+     * @param resetTapestryCaches false if Tapestry's caches should not be reset ( pages already built keep the old definition ).
+     */
+    public void setResetTapestryCaches(boolean resetTapestryCaches) {
+        this.resetTapestryCaches = resetTapestryCaches;
+    }
+
+    /**
+     * @return the resetTapestryCaches
+     */
+    public boolean isResetTapestryCaches() {
+        return resetTapestryCaches;
+    }
+
+    /**
+     * @param log the log to set
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the log
+     */
+    public Log getLog() {
+        return log;
+    }
+}
@@ -0,0 +1,28 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+/**
+ * Receives the measurements taken when {@link FlowTemplateSourceDelegate} creates a flow template.
+ * Only called when a template is created, not when it is served from the {@link FlowTemplateCache}.
+ *
+ * @see FlowTemplateStatistics
+ */
+public interface FlowTemplateMetrics {
+
+    /**
+     * @param record the measurements of one template creation.
+     */
+    void templateCreated(FlowTemplateRecord record);
+}
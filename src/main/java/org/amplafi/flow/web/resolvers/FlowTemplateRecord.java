@@ -0,0 +1,169 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+/**
+ * The measurements taken while creating one flow template. Filled in by the thread creating the template.
+ */
+public class FlowTemplateRecord {
+
+    private final String flowTypeName;
+
+    private final String componentType;
+
+    private long generationNanos;
+
+    private long parameterNanos;
+
+    private long parseNanos;
+
+    private int templateChars;
+
+    private int activityCount;
+
+    private int specificationResolutions;
+
+    private boolean loaded;
+
+    public FlowTemplateRecord(String flowTypeName, String componentType) {
+        this.flowTypeName = flowTypeName;
+        this.componentType = componentType;
+    }
+
+    /**
+     * @return the flowTypeName
+     */
+    public String getFlowTypeName() {
+        return flowTypeName;
+    }
+
+    /**
+     * @return the FullFlow component class name or the FlowPage id.
+     */
+    public String getComponentType() {
+        return componentType;
+    }
+
+    /**
+     * @param generationNanos time spent generating ( or loading ) the template, including {@link #getParameterNanos()}.
+     */
+    public void setGenerationNanos(long generationNanos) {
+        this.generationNanos = generationNanos;
+    }
+
+    /**
+     * @return the generationNanos
+     */
+    public long getGenerationNanos() {
+        return generationNanos;
+    }
+
+    /**
+     * @param nanos time spent connecting component parameters to flow properties.
+     */
+    public void addParameterNanos(long nanos) {
+        this.parameterNanos += nanos;
+    }
+
+    /**
+     * @return the parameterNanos
+     */
+    public long getParameterNanos() {
+        return parameterNanos;
+    }
+
+    /**
+     * @param parseNanos time spent parsing the template.
+     */
+    public void setParseNanos(long parseNanos) {
+        this.parseNanos = parseNanos;
+    }
+
+    /**
+     * @return the parseNanos
+     */
+    public long getParseNanos() {
+        return parseNanos;
+    }
+
+    /**
+     * @param templateChars the size of the template.
+     */
+    public void setTemplateChars(int templateChars) {
+        this.templateChars = templateChars;
+    }
+
+    /**
+     * @return the templateChars
+     */
+    public int getTemplateChars() {
+        return templateChars;
+    }
+
+    /**
+     * @param activityCount the activityCount to set
+     */
+    public void setActivityCount(int activityCount) {
+        this.activityCount = activityCount;
+    }
+
+    /**
+     * @return the activityCount
+     */
+    public int getActivityCount() {
+        return activityCount;
+    }
+
+    /**
+     * a component specification was looked up with the Tapestry resolver ( not found in the {@link FlowTemplateCache} ).
+     */
+    public void addSpecificationResolution() {
+        this.specificationResolutions++;
+    }
+
+    /**
+     * @return the specificationResolutions
+     */
+    public int getSpecificationResolutions() {
+        return specificationResolutions;
+    }
+
+    /**
+     * @param loaded true if the template was loaded from the {@link FlowTemplateDiskCache}.
+     */
+    public void setLoaded(boolean loaded) {
+        this.loaded = loaded;
+    }
+
+    /**
+     * @return the loaded
+     */
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return total time in nanoseconds.
+     */
+    public long getTotalNanos() {
+        return generationNanos + parseNanos;
+    }
+
+    @Override
+    public String toString() {
+        return flowTypeName + "(" + componentType + "): generation=" + generationNanos / 1000000 + "ms (parameters="
+            + parameterNanos / 1000000 + "ms) parse=" + parseNanos / 1000000 + "ms chars=" + templateChars
+            + " activities=" + activityCount + " resolutions=" + specificationResolutions + (loaded? " loaded":"");
+    }
+}
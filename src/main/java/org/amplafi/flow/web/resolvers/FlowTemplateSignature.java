@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+import org.amplafi.flow.Flow;
+import org.amplafi.flow.FlowActivity;
+import org.amplafi.flow.FlowPropertyDefinition;
+
+import com.sworddance.util.ApplicationIllegalStateException;
+
+/**
+ * Computes a hash of the parts of a {@link Flow} definition that the generated flow template depends on:
+ * the activities' component names and the flow property definitions' ui component parameter names.
+ *
+ * Two definitions with the same signature produce the same template ( given the same generation settings, which
+ * are also part of the signature ).
+ */
+public class FlowTemplateSignature {
+
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * @param flow
+     * @param settings generation settings that change the generated template.
+     * @return the signature of the flow's template.
+     */
+    public static String getSignature(Flow flow, String... settings) {
+        FlowTemplateSignature signature = new FlowTemplateSignature();
+        signature.add(flow.getFlowPropertyProviderName());
+        for(String setting: settings) {
+            signature.add(setting);
+        }
+        signature.addPropertyDefinitions(flow.getPropertyDefinitions());
+        for(FlowActivity activity: flow.getActivities()) {
+            signature.addActivity(flow, activity);
+        }
+        return signature.toString();
+    }
+
+    /**
+     * @param flow
+     * @param activity
+     * @param componentSignature the signature of the class and parameters of the activity's component
+     * ( see {@link ComponentParameterIndex#getSignature(String)} ).
+     * @return the signature of the part of the template generated for a single activity.
+     */
+    public static String getSignature(Flow flow, FlowActivity activity, String componentSignature) {
+        FlowTemplateSignature signature = new FlowTemplateSignature();
+        signature.addActivity(flow, activity);
+        signature.add(componentSignature);
+        // the activity's component is connected to flow-level properties that are not masked by the activity.
+        if ( flow.getPropertyDefinitions() != null ) {
+            for(FlowPropertyDefinition definition: new TreeMap<String, FlowPropertyDefinition>(flow.getPropertyDefinitions()).values()) {
+                if ( activity.getFlowPropertyDefinition(definition.getName()) == definition) {
+                    signature.add(definition.getName()).add(definition.getUiComponentParameterName());
+                }
+            }
+        }
+        return signature.toString();
+    }
+
+    /**
+     * @param values
+     * @return the hash of the values.
+     */
+    public static String hash(String... values) {
+        FlowTemplateSignature signature = new FlowTemplateSignature();
+        for(String value: values) {
+            signature.add(value);
+        }
+        return signature.toString();
+    }
+
+    private FlowTemplateSignature addActivity(Flow flow, FlowActivity activity) {
+        add(Integer.toString(activity.getIndex()));
+        add(activity.getFlowPropertyProviderName());
+        add(activity.getComponentName());
+        addPropertyDefinitions(activity.getPropertyDefinitions());
+        return this;
+    }
+
+    private FlowTemplateSignature addPropertyDefinitions(Map<String, FlowPropertyDefinition> propertyDefinitions) {
+        if ( propertyDefinitions != null ) {
+            // property definition maps are not reliably ordered.
+            for(FlowPropertyDefinition definition: new TreeMap<String, FlowPropertyDefinition>(propertyDefinitions).values()) {
+                add(definition.getName()).add(definition.getUiComponentParameterName());
+            }
+        }
+        return this;
+    }
+
+    private FlowTemplateSignature add(String value) {
+        text.append(value).append('\u0000');
+        return this;
+    }
+
+    /**
+     * @return hex encoded MD5 of the collected values.
+     */
+    @Override
+    public String toString() {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(text.toString().getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(digest.length * 2);
+            for(byte b: digest) {
+                hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new ApplicationIllegalStateException(e);
+        } catch (UnsupportedEncodingException e) {
+            throw new ApplicationIllegalStateException(e);
+        }
+    }
+}
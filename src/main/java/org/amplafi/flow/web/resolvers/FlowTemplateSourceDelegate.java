@@ -15,10 +15,12 @@
 package org.amplafi.flow.web.resolvers;
 
 import java.util.Locale;
+import java.util.concurrent.Callable;
 
 import org.amplafi.flow.Flow;
 import org.amplafi.flow.FlowDefinitionsManager;
 import org.amplafi.flow.web.components.FullFlowComponent;
+import org.amplafi.flow.web.resolvers.FlowTemplateCache.CachedTemplate;
 import org.apache.commons.collections.CollectionUtils;
 import org.apache.commons.logging.Log;
 import org.apache.hivemind.Location;
@@ -37,45 +39,211 @@ import org.apache.tapestry.spec.IComponentSpecification;
 public abstract class FlowTemplateSourceDelegate implements ITemplateSourceDelegate {
 
     private FlowDefinitionsManager flowDefinitionsManager;
+    private FlowTemplateCache templateCache = new FlowTemplateCache();
+    private FlowTemplateDiskCache templateDiskCache;
+    private FlowTemplateMetrics templateMetrics;
+    private FlowLocationIndex locationIndex;
+    /**
+     * measurements of the template being created by the current thread.
+     */
+    private static final ThreadLocal<FlowTemplateRecord> CURRENT_RECORD = new ThreadLocal<FlowTemplateRecord>();
     private Log log;
     @SuppressWarnings("unused")
     public ComponentTemplate findTemplate(IRequestCycle cycle, IComponent component, Locale locale) {
         ComponentTemplate ret = null;
         IComponentSpecification spec = component.getSpecification();
         boolean isFlowPage = FlowAwareSpecResolverDelegate.ID.equals(spec.getPublicId());
-        if (isFlowPage || spec.getComponentClassName().equals(FullFlowComponent.class.getName())) {
+        String componentClassName = spec.getComponentClassName();
+        if (isFlowPage || componentClassName.equals(FullFlowComponent.class.getName())) {
             String type = spec.getDescription();
             Flow flow = flowDefinitionsManager.getFlowDefinition(type);
             // build the content for this full flow component
-            String content;
+            String content = null;
+            char[] templateData = null;
             if (flow == null) {
                 content = "<div>[Flow " + type + " not found]</div>";
             } else if ( CollectionUtils.isEmpty(flow.getActivities())) {
                 content = "<div>[Flow " + type + " has no activites]</div>";
             } else {
-                content = isFlowPage ?
-                        createPageTemplate(flow, cycle, component.getNamespace(), component.getLocation()) :
-                        createComponentTemplate(flow, cycle, component.getNamespace(), component.getLocation());
+                String componentType = isFlowPage? FlowAwareSpecResolverDelegate.ID : componentClassName;
+                CachedTemplate cachedTemplate = getFlowTemplate(cycle, type, flow, isFlowPage, componentType,
+                    spec.getSpecificationLocation(), component.getNamespace(), locale, component);
+                templateData = cachedTemplate.getTemplateData();
+                ret = cachedTemplate.getTemplate();
             }
             // now that we have the content, enhance the location assigned to the spec
-            spec.setLocation(new MemoryMappedLocation(spec.getLocation(), content));
-            // finally, create the template
-            ret = constructTemplateInstance(cycle, content.toCharArray(),
-                    spec.getSpecificationLocation(), component);
+            // ( specs are shared, so the location may already be enhanced ).
+            Location specLocation = spec.getLocation();
+            if ( specLocation instanceof MemoryMappedLocation ) {
+                specLocation = ((MemoryMappedLocation)specLocation).getDelegate();
+            }
+            // ( the location shares the template chars rather than holding its own copy of the content )
+            MemoryMappedLocation memoryMappedLocation = templateData == null? new MemoryMappedLocation(specLocation, content)
+                : new MemoryMappedLocation(specLocation, templateData);
+            spec.setLocation(memoryMappedLocation);
+            if ( locationIndex != null ) {
+                locationIndex.put(memoryMappedLocation);
+            }
+            if ( ret == null ) {
+                // finally, create the template
+                ret = constructTemplateInstance(cycle, content.toCharArray(),
+                        spec.getSpecificationLocation(), null, component);
+            }
         }
         return ret;
     }
 
+    /**
+     * Get the template for the flow from the {@link FlowTemplateCache}, generating and parsing the template if needed.
+     *
+     * @param cycle null when templates are created ahead of time.
+     * @param flowTypeName
+     * @param flow the flow definition ( must have activities ).
+     * @param isFlowPage true for the FlowPage template, false for the FullFlow component template.
+     * @param componentType the component type part of the cache key.
+     * @param specificationLocation the resource of the component specification.
+     * @param namespace the namespace used to resolve the components in the template.
+     * @param locale
+     * @param component the component being loaded, null when templates are created ahead of time.
+     * @return the cached template.
+     */
+    public CachedTemplate getFlowTemplate(IRequestCycle cycle, String flowTypeName, Flow flow, boolean isFlowPage,
+        String componentType, Resource specificationLocation, INamespace namespace, Locale locale, IComponent component) {
+        try {
+            return getOrCreateFlowTemplate(cycle, flowTypeName, flow, isFlowPage, componentType, specificationLocation, namespace, locale, component);
+        } catch (FlowTemplateWarmUp.DeferredTemplateException e) {
+            if ( cycle == null ) {
+                throw e;
+            }
+            // waited for a warm-up thread that gave up on this template: generate it with this request.
+            return getOrCreateFlowTemplate(cycle, flowTypeName, flow, isFlowPage, componentType, specificationLocation, namespace, locale, component);
+        }
+    }
+
+    private CachedTemplate getOrCreateFlowTemplate(final IRequestCycle cycle, final String flowTypeName, final Flow flow, final boolean isFlowPage,
+        final String componentType, final Resource specificationLocation, final INamespace namespace, final Locale locale, final IComponent component) {
+        return templateCache.getOrCreate(flowTypeName, flow, componentType, namespace, locale,
+            new Callable<CachedTemplate>() {
+                public CachedTemplate call() {
+                    FlowTemplateRecord record = templateMetrics == null? null : new FlowTemplateRecord(flowTypeName, componentType);
+                    CURRENT_RECORD.set(record);
+                    try {
+                        CachedTemplate created = createTemplate(cycle, flowTypeName, flow, isFlowPage, componentType,
+                            specificationLocation, namespace, locale, component, record);
+                        if ( record != null ) {
+                            record.setActivityCount(flow.getActivities().size());
+                            record.setTemplateChars(created.getTemplate().getTemplateData().length);
+                            templateMetrics.templateCreated(record);
+                        }
+                        return created;
+                    } finally {
+                        CURRENT_RECORD.remove();
+                    }
+                }
+            });
+    }
+
+    private CachedTemplate createTemplate(IRequestCycle cycle, String flowTypeName, Flow flow, boolean isFlowPage, String componentType,
+        Resource specificationLocation, INamespace namespace, Locale locale, IComponent component, FlowTemplateRecord record) {
+        long start = System.nanoTime();
+        Location location = component == null? null : component.getLocation();
+        String diskCacheKey = null;
+        if ( templateDiskCache != null && templateDiskCache.isEnabled()) {
+            diskCacheKey = getDiskCacheKey(flow, isFlowPage, componentType, cycle, namespace, locale, location);
+            CachedTemplate loaded = templateDiskCache.load(flowTypeName, diskCacheKey, specificationLocation, flow);
+            if ( loaded != null ) {
+                if ( record != null ) {
+                    record.setLoaded(true);
+                    record.setGenerationNanos(System.nanoTime() - start);
+                }
+                return loaded;
+            }
+        }
+        char[] templateData = isFlowPage ?
+                createPageTemplate(flow, cycle, namespace, location).toCharArray() :
+                createComponentTemplateData(flow, cycle, namespace, location);
+        long generated = System.nanoTime();
+        // the parsed template keeps templateData, the String content is only made if needed.
+        CachedTemplate created = new CachedTemplate(templateData, constructTemplateInstance(cycle, templateData,
+            specificationLocation, namespace, component));
+        if ( record != null ) {
+            record.setGenerationNanos(generated - start);
+            record.setParseNanos(System.nanoTime() - generated);
+        }
+        if ( diskCacheKey != null ) {
+            templateDiskCache.store(flowTypeName, diskCacheKey, created, flow);
+        }
+        return created;
+    }
+
+    /**
+     * @return the measurements of the template being created by this thread; null if there is no {@link FlowTemplateMetrics}.
+     */
+    protected FlowTemplateRecord getCurrentRecord() {
+        return CURRENT_RECORD.get();
+    }
+
+    /**
+     * @param flow
+     * @return the {@link FlowTemplateSignature} of the flow definition.
+     */
+    public String getTemplateSignature(Flow flow) {
+        return FlowTemplateSignature.getSignature(flow);
+    }
+
+    /**
+     * @param flow
+     * @param cycle
+     * @param namespace
+     * @param location
+     * @return signature of the components used in the flow's component template ( i.e. their parameters ) - anything other than
+     * the flow definition that changes the generated template.
+     */
+    protected String getComponentSignature(Flow flow, IRequestCycle cycle, INamespace namespace, Location location) {
+        return "";
+    }
+
+    private String getDiskCacheKey(Flow flow, boolean isFlowPage, String componentType, IRequestCycle cycle, INamespace namespace,
+        Locale locale, Location location) {
+        // the page template does not depend on the components.
+        String componentSignature = isFlowPage? "" : getComponentSignature(flow, cycle, namespace, location);
+        return getTemplateSignature(flow) + "|" + componentSignature + "|" + componentType
+            + "|" + (namespace == null? "" : namespace.getExtendedId()) + "|" + locale;
+    }
+
+    /**
+     * Generate and parse the FullFlow component template and ( if pageSpecificationLocation is not null ) the FlowPage template
+     * of the flow so that they are already in the {@link FlowTemplateCache} when the flow is first used.
+     *
+     * @param flowTypeName
+     * @param componentSpecificationLocation
+     * @param pageSpecificationLocation
+     * @param namespace
+     * @param locale
+     */
+    public void preloadTemplates(String flowTypeName, Resource componentSpecificationLocation, Resource pageSpecificationLocation,
+        INamespace namespace, Locale locale) {
+        Flow flow = flowDefinitionsManager.getFlowDefinition(flowTypeName);
+        if ( flow != null && !CollectionUtils.isEmpty(flow.getActivities())) {
+            getFlowTemplate(null, flowTypeName, flow, false, FullFlowComponent.class.getName(), componentSpecificationLocation, namespace, locale, null);
+            if ( pageSpecificationLocation != null ) {
+                getFlowTemplate(null, flowTypeName, flow, true, FlowAwareSpecResolverDelegate.ID, pageSpecificationLocation, namespace, locale, null);
+            }
+        }
+    }
+
     protected abstract String createPageTemplate(Flow flow, IRequestCycle cycle, INamespace namespace, Location location);
 
     /**
      * @param cycle
      * @param charArray
      * @param specificationLocation
-     * @param component
+     * @param namespace used to resolve the components in the template ( if null, the component's namespace is used ).
+     * @param component null if the template is being created ahead of time.
      * @return template
      */
-    protected abstract ComponentTemplate constructTemplateInstance(IRequestCycle cycle, char[] charArray, Resource specificationLocation, IComponent component);
+    protected abstract ComponentTemplate constructTemplateInstance(IRequestCycle cycle, char[] charArray, Resource specificationLocation,
+        INamespace namespace, IComponent component);
 
     /**
      * @param flow
@@ -86,6 +254,18 @@ public abstract class FlowTemplateSourceDelegate implements ITemplateSourceDeleg
      */
     protected abstract String createComponentTemplate(Flow flow, IRequestCycle cycle, INamespace namespace, Location location);
 
+    /**
+     * Override to avoid the String copy of the template.
+     * @param flow
+     * @param cycle
+     * @param namespace
+     * @param location
+     * @return template chars ( handed to the parser as is ).
+     */
+    protected char[] createComponentTemplateData(Flow flow, IRequestCycle cycle, INamespace namespace, Location location) {
+        return createComponentTemplate(flow, cycle, namespace, location).toCharArray();
+    }
+
     public void setLog(Log log) {
         this.log = log;
     }
@@ -108,5 +288,61 @@ public abstract class FlowTemplateSourceDelegate implements ITemplateSourceDeleg
         return flowDefinitionsManager;
     }
 
+    /**
+     * @param templateCache the templateCache to set
+     */
+    public void setTemplateCache(FlowTemplateCache templateCache) {
+        this.templateCache = templateCache;
+    }
+
+    /**
+     * @return the templateCache
+     */
+    public FlowTemplateCache getTemplateCache() {
+        return templateCache;
+    }
+
+    /**
+     * @param templateDiskCache keeps the templates across restarts ( optional ).
+     */
+    public void setTemplateDiskCache(FlowTemplateDiskCache templateDiskCache) {
+        this.templateDiskCache = templateDiskCache;
+    }
+
+    /**
+     * @return the templateDiskCache
+     */
+    public FlowTemplateDiskCache getTemplateDiskCache() {
+        return templateDiskCache;
+    }
+
+    /**
+     * @param templateMetrics receives the measurements of each template created ( optional ).
+     */
+    public void setTemplateMetrics(FlowTemplateMetrics templateMetrics) {
+        this.templateMetrics = templateMetrics;
+    }
+
+    /**
+     * @return the templateMetrics
+     */
+    public FlowTemplateMetrics getTemplateMetrics() {
+        return templateMetrics;
+    }
+
+    /**
+     * @param locationIndex receives the locations installed on the generated component specifications ( optional ).
+     */
+    public void setLocationIndex(FlowLocationIndex locationIndex) {
+        this.locationIndex = locationIndex;
+    }
+
+    /**
+     * @return the locationIndex
+     */
+    public FlowLocationIndex getLocationIndex() {
+        return locationIndex;
+    }
+
 
 }
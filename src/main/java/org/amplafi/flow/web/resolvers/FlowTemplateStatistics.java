@@ -0,0 +1,174 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.amplafi.flow.web.PlatformMBeanRegistration;
+import org.apache.commons.collections.keyvalue.MultiKey;
+import org.apache.commons.logging.Log;
+import org.apache.hivemind.events.RegistryShutdownListener;
+
+/**
+ * Default {@link FlowTemplateMetrics}: keeps the last {@link FlowTemplateRecord} of each flow template and running totals,
+ * and makes them available through JMX ( {@link FlowTemplateStatisticsMBean} ) so the flows that dominate the cold-start cost
+ * can be found with {@link #slowestFlowTemplates(int)}.
+ */
+public class FlowTemplateStatistics implements FlowTemplateMetrics, FlowTemplateStatisticsMBean, RegistryShutdownListener {
+
+    private static final Comparator<FlowTemplateRecord> SLOWEST_FIRST = new Comparator<FlowTemplateRecord>() {
+        public int compare(FlowTemplateRecord o1, FlowTemplateRecord o2) {
+            long difference = o2.getTotalNanos() - o1.getTotalNanos();
+            return difference > 0? 1: difference < 0? -1: 0;
+        }
+    };
+
+    private final ConcurrentMap<MultiKey, FlowTemplateRecord> records = new ConcurrentHashMap<MultiKey, FlowTemplateRecord>();
+
+    private final AtomicLong templatesCreated = new AtomicLong();
+
+    private final AtomicLong generationNanos = new AtomicLong();
+
+    private final AtomicLong parseNanos = new AtomicLong();
+
+    private final AtomicLong specificationResolutions = new AtomicLong();
+
+    private String objectName;
+
+    private final PlatformMBeanRegistration registration = new PlatformMBeanRegistration();
+
+    private Log log;
+
+    /**
+     * Register the MBean ( if {@link #getObjectName()} is not blank ).
+     */
+    public void initializeService() {
+        registration.register(this, objectName, getLog());
+    }
+
+    /**
+     * Unregister the MBean. The BuilderFactory registers this with the ShutdownCoordinator.
+     * @see org.apache.hivemind.events.RegistryShutdownListener#registryDidShutdown()
+     */
+    @Override
+    public void registryDidShutdown() {
+        registration.unregister();
+    }
+
+    @Override
+    public void templateCreated(FlowTemplateRecord record) {
+        records.put(new MultiKey(record.getFlowTypeName(), record.getComponentType()), record);
+        templatesCreated.incrementAndGet();
+        generationNanos.addAndGet(record.getGenerationNanos());
+        parseNanos.addAndGet(record.getParseNanos());
+        specificationResolutions.addAndGet(record.getSpecificationResolutions());
+        if ( getLog().isDebugEnabled()) {
+            getLog().debug(record);
+        }
+    }
+
+    @Override
+    public long getTemplatesCreated() {
+        return templatesCreated.get();
+    }
+
+    @Override
+    public long getTotalGenerationMillis() {
+        return generationNanos.get() / 1000000;
+    }
+
+    @Override
+    public long getTotalParseMillis() {
+        return parseNanos.get() / 1000000;
+    }
+
+    @Override
+    public long getTotalSpecificationResolutions() {
+        return specificationResolutions.get();
+    }
+
+    @Override
+    public String[] slowestFlowTemplates(int count) {
+        List<FlowTemplateRecord> slowest = getSlowest(count);
+        String[] report = new String[slowest.size()];
+        for (int i = 0; i < report.length; i++) {
+            report[i] = slowest.get(i).toString();
+        }
+        return report;
+    }
+
+    @Override
+    public String[] flowTemplate(String flowTypeName) {
+        List<String> report = new ArrayList<String>();
+        for(FlowTemplateRecord record: records.values()) {
+            if ( record.getFlowTypeName().equals(flowTypeName)) {
+                report.add(record.toString());
+            }
+        }
+        return report.toArray(new String[report.size()]);
+    }
+
+    /**
+     * @param count
+     * @return the records of the slowest flow templates, slowest first.
+     */
+    public List<FlowTemplateRecord> getSlowest(int count) {
+        List<FlowTemplateRecord> all = new ArrayList<FlowTemplateRecord>(records.values());
+        Collections.sort(all, SLOWEST_FIRST);
+        return all.subList(0, Math.min(count, all.size()));
+    }
+
+    @Override
+    public void reset() {
+        records.clear();
+        templatesCreated.set(0);
+        generationNanos.set(0);
+        parseNanos.set(0);
+        specificationResolutions.set(0);
+    }
+
+    /**
+     * @param objectName the JMX name to register under; blank to not register.
+     */
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * @return the objectName
+     */
+    public String getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * @param log the log to set
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the log
+     */
+    public Log getLog() {
+        return log;
+    }
+}
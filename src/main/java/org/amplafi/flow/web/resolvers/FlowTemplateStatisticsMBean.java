@@ -0,0 +1,57 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+/**
+ * JMX view of {@link FlowTemplateStatistics}.
+ */
+public interface FlowTemplateStatisticsMBean {
+
+    /**
+     * @return number of templates created ( generated or loaded ).
+     */
+    long getTemplatesCreated();
+
+    /**
+     * @return total milliseconds spent generating templates.
+     */
+    long getTotalGenerationMillis();
+
+    /**
+     * @return total milliseconds spent parsing templates.
+     */
+    long getTotalParseMillis();
+
+    /**
+     * @return total number of component specifications looked up with the Tapestry resolver.
+     */
+    long getTotalSpecificationResolutions();
+
+    /**
+     * @param count
+     * @return one line per flow template, slowest ( total generation + parse time ) first.
+     */
+    String[] slowestFlowTemplates(int count);
+
+    /**
+     * @param flowTypeName
+     * @return the last measurements for the flow's templates.
+     */
+    String[] flowTemplate(String flowTypeName);
+
+    /**
+     * forget all measurements.
+     */
+    void reset();
+}
@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpServlet;
+
+import org.amplafi.flow.FlowDefinitionsManager;
+import org.amplafi.flow.web.components.FullFlowComponent;
+import org.apache.commons.lang.LocaleUtils;
+import org.apache.commons.logging.Log;
+import org.apache.hivemind.ApplicationRuntimeException;
+import org.apache.hivemind.Location;
+import org.apache.hivemind.Resource;
+import org.apache.hivemind.service.ThreadEventNotifier;
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.engine.ISpecificationSource;
+import org.apache.tapestry.services.ApplicationInitializer;
+
+import static org.apache.commons.lang.StringUtils.*;
+
+/**
+ * Generates and parses the templates of every flow known to the {@link FlowDefinitionsManager} when the application starts,
+ * so the first user of each flow does not pay for the template generation.
+ *
+ * The FullFlow component template ( and the FlowPage template if {@link #getFlowPageSuffix()} is set ) of each flow is
+ * created on a small, fixed-size pool of daemon threads. The application start is not delayed: the templates are
+ * put in the {@link FlowTemplateCache} as they are finished. A flow that fails to generate is logged and left for the
+ * first request. So is a flow with a component that cannot be resolved without a request cycle ( see {@link DeferredTemplateException} ):
+ * nothing is cached and the flow definition is not changed.
+ *
+ * The {@link FlowTemplateSourceDelegate} that generates the templates is the one Tapestry uses: tapestry.parse.TemplateSourceDelegate
+ * is implemented with this service's {@link #getTemplateSourceDelegate()}.
+ */
+public class FlowTemplateWarmUp implements ApplicationInitializer {
+
+    private FlowDefinitionsManager flowDefinitionsManager;
+
+    private FlowTemplateSourceDelegate templateSourceDelegate;
+
+    private ISpecificationSource specificationSource;
+
+    private ThreadEventNotifier threadEventNotifier;
+
+    private Map<Class<?>, String> templateMap;
+
+    private String flowPageSuffix;
+
+    private boolean enabled;
+
+    private int threadCount = 2;
+
+    /**
+     * comma-separated list of locales to generate templates for.
+     */
+    private String locales;
+
+    private Log log;
+
+    /**
+     * @see org.apache.tapestry.services.ApplicationInitializer#initialize(javax.servlet.http.HttpServlet)
+     */
+    @Override
+    public void initialize(HttpServlet servlet) {
+        if ( enabled ) {
+            if ( templateSourceDelegate == null ) {
+                getLog().warn("no FlowTemplateSourceDelegate set - flow templates will not be pre-generated");
+            } else {
+                warmUp();
+            }
+        }
+    }
+
+    /**
+     * Queue the generation of all the flow templates.
+     */
+    public void warmUp() {
+        final INamespace namespace = specificationSource.getApplicationNamespace();
+        final String componentSuffix = templateMap.get(FullFlowComponent.class);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threadCount, threadCount, 0L, TimeUnit.MILLISECONDS,
+            new LinkedBlockingQueue<Runnable>(), new WarmUpThreadFactory());
+        List<Locale> localeList = getLocaleList();
+        for (final String flowTypeName: flowDefinitionsManager.getFlowDefinitions().keySet()) {
+            final Resource componentResource = FlowComponentSpecResolver.createSpecificationResource(flowTypeName + componentSuffix);
+            final Resource pageResource = isBlank(flowPageSuffix)? null: FlowComponentSpecResolver.createSpecificationResource(flowTypeName + flowPageSuffix);
+            for (final Locale locale: localeList) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        try {
+                            templateSourceDelegate.preloadTemplates(flowTypeName, componentResource, pageResource, namespace, locale);
+                        } catch (DeferredTemplateException e) {
+                            getLog().debug(flowTypeName + ": flow templates left for the first request: " + e.getMessage());
+                        } catch (RuntimeException e) {
+                            getLog().warn(flowTypeName + ": could not pre-generate flow templates", e);
+                        } finally {
+                            // give back per-thread services ( i.e. the threaded ComponentSpecificationResolver ).
+                            if ( threadEventNotifier != null ) {
+                                threadEventNotifier.fireThreadCleanup();
+                            }
+                        }
+                    }
+                });
+            }
+        }
+        // threads exit once the queued work is done.
+        executor.shutdown();
+    }
+
+    private List<Locale> getLocaleList() {
+        List<Locale> localeList = new ArrayList<Locale>();
+        if ( isNotBlank(locales)) {
+            for(String locale: split(locales, ", ")) {
+                localeList.add(LocaleUtils.toLocale(locale));
+            }
+        } else {
+            localeList.add(Locale.getDefault());
+        }
+        return localeList;
+    }
+
+    /**
+     * Thrown when a flow template cannot be generated ahead of time ( i.e. a component could not be resolved
+     * without a request cycle ). The template is generated by the first request instead.
+     */
+    public static class DeferredTemplateException extends ApplicationRuntimeException {
+        private static final long serialVersionUID = 1L;
+        public DeferredTemplateException(String message, Location location) {
+            super(message, location, null);
+        }
+    }
+
+    private static class WarmUpThreadFactory implements ThreadFactory {
+        private final AtomicInteger count = new AtomicInteger();
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "FlowTemplateWarmUp-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+
+    /**
+     * @param flowDefinitionsManager the flowDefinitionsManager to set
+     */
+    public void setFlowDefinitionsManager(FlowDefinitionsManager flowDefinitionsManager) {
+        this.flowDefinitionsManager = flowDefinitionsManager;
+    }
+
+    /**
+     * @return the flowDefinitionsManager
+     */
+    public FlowDefinitionsManager getFlowDefinitionsManager() {
+        return flowDefinitionsManager;
+    }
+
+    /**
+     * @param templateSourceDelegate the templateSourceDelegate to set
+     */
+    public void setTemplateSourceDelegate(FlowTemplateSourceDelegate templateSourceDelegate) {
+        this.templateSourceDelegate = templateSourceDelegate;
+    }
+
+    /**
+     * @return the templateSourceDelegate
+     */
+    public FlowTemplateSourceDelegate getTemplateSourceDelegate() {
+        return templateSourceDelegate;
+    }
+
+    /**
+     * @param specificationSource the specificationSource to set
+     */
+    public void setSpecificationSource(ISpecificationSource specificationSource) {
+        this.specificationSource = specificationSource;
+    }
+
+    /**
+     * @return the specificationSource
+     */
+    public ISpecificationSource getSpecificationSource() {
+        return specificationSource;
+    }
+
+    /**
+     * @param threadEventNotifier the threadEventNotifier to set
+     */
+    public void setThreadEventNotifier(ThreadEventNotifier threadEventNotifier) {
+        this.threadEventNotifier = threadEventNotifier;
+    }
+
+    /**
+     * @return the threadEventNotifier
+     */
+    public ThreadEventNotifier getThreadEventNotifier() {
+        return threadEventNotifier;
+    }
+
+    /**
+     * @param templateMap the templateMap to set
+     */
+    public void setTemplateMap(Map<Class<?>, String> templateMap) {
+        this.templateMap = templateMap;
+    }
+
+    /**
+     * @return the templateMap
+     */
+    public Map<Class<?>, String> getTemplateMap() {
+        return templateMap;
+    }
+
+    /**
+     * @param flowPageSuffix the suffix configured on {@link FlowAwareSpecResolverDelegate#setSuffix(String)}; blank to skip the FlowPage templates.
+     */
+    public void setFlowPageSuffix(String flowPageSuffix) {
+        this.flowPageSuffix = flowPageSuffix;
+    }
+
+    /**
+     * @return the flowPageSuffix
+     */
+    public String getFlowPageSuffix() {
+        return flowPageSuffix;
+    }
+
+    /**
+     * @param enabled the enabled to set
+     */
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    /**
+     * @return the enabled
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @param threadCount the number of threads generating templates.
+     */
+    public void setThreadCount(int threadCount) {
+        this.threadCount = threadCount;
+    }
+
+    /**
+     * @return the threadCount
+     */
+    public int getThreadCount() {
+        return threadCount;
+    }
+
+    /**
+     * @param locales comma-separated list of locales; blank for the default locale.
+     */
+    public void setLocales(String locales) {
+        this.locales = locales;
+    }
+
+    /**
+     * @return the locales
+     */
+    public String getLocales() {
+        return locales;
+    }
+
+    /**
+     * @param log the log to set
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the log
+     */
+    public Log getLog() {
+        return log;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.IOException;
+import java.io.Reader;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Content with the offsets of its lines, so that any line can be sliced out directly.
+ * Lines end with "\n", "\r" or "\r\n" ( as with {@link java.io.LineNumberReader} ).
+ */
+public class LineIndexedContent {
+
+    private final char[] chars;
+
+    /**
+     * lineStarts[i] is the offset of line i + 1; the last entry is the length of the content.
+     */
+    private final int[] lineStarts;
+
+    /**
+     * @param chars shared, not copied.
+     */
+    public LineIndexedContent(char[] chars) {
+        this.chars = chars;
+        this.lineStarts = index(chars);
+    }
+
+    /**
+     * @param reader read to the end ( not closed ).
+     * @return the content read.
+     * @throws IOException
+     */
+    public static LineIndexedContent read(Reader reader) throws IOException {
+        return new LineIndexedContent(IOUtils.toCharArray(reader));
+    }
+
+    /**
+     * @return number of lines.
+     */
+    public int getLineCount() {
+        return lineStarts.length - 1;
+    }
+
+    /**
+     * @param lineNumber 1-based.
+     * @return the line without its line terminator.
+     */
+    public String getLine(int lineNumber) {
+        if ( lineNumber < 1 || lineNumber > getLineCount()) {
+            throw new IndexOutOfBoundsException("line " + lineNumber + " of " + getLineCount());
+        }
+        int start = lineStarts[lineNumber - 1];
+        int end = lineStarts[lineNumber];
+        if ( end > start && chars[end - 1] == '\n') {
+            end--;
+        }
+        if ( end > start && chars[end - 1] == '\r') {
+            end--;
+        }
+        return new String(chars, start, end - start);
+    }
+
+    private static int[] index(char[] chars) {
+        int[] starts = new int[16];
+        int count = 0;
+        int start = 0;
+        while ( start < chars.length ) {
+            if ( count + 1 >= starts.length ) {
+                int[] grown = new int[starts.length * 2];
+                System.arraycopy(starts, 0, grown, 0, count);
+                starts = grown;
+            }
+            starts[count++] = start;
+            int i = start;
+            while ( i < chars.length && chars[i] != '\n' && chars[i] != '\r') {
+                i++;
+            }
+            if ( i < chars.length && chars[i] == '\r' && i + 1 < chars.length && chars[i + 1] == '\n') {
+                i++;
+            }
+            start = i + 1;
+        }
+        int[] result = new int[count + 1];
+        System.arraycopy(starts, 0, result, 0, count);
+        result[count] = chars.length;
+        return result;
+    }
+}
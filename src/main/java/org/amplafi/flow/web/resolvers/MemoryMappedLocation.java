@@ -13,20 +13,73 @@
  */
 package org.amplafi.flow.web.resolvers;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.hivemind.ApplicationRuntimeException;
 import org.apache.hivemind.Location;
 import org.apache.hivemind.Resource;
 
 /**
  * A location that represents a string in memory.
+ *
+ * The string is only needed when an exception report is rendered, so it is not kept as a String:
+ * the template chars are shared with the parsed template ( no copy ) or, for other content, kept deflated.
+ * {@link #getContent()} materializes the string each time it is called. The line offsets of shared template chars
+ * are indexed once, so that {@link #getLineIndexedContent()} slices excerpts without copying the content.
  */
 public class MemoryMappedLocation implements Location {
 
-    private String content;
-    private Location delegate;
+    /**
+     * content shorter than this is not worth compressing.
+     */
+    private static final int COMPRESSION_THRESHOLD = 512;
+
+    private static final String ENCODING = "UTF-8";
+
+    private final Location delegate;
+    private final char[] templateData;
+    private final byte[] compressed;
+    private final String content;
+    private volatile LineIndexedContent lineIndexedContent;
 
     public MemoryMappedLocation(Location delegate, String content) {
         this.delegate = delegate;
-        this.content = content;
+        this.templateData = null;
+        if ( content != null && content.length() > COMPRESSION_THRESHOLD ) {
+            this.compressed = compress(content);
+            this.content = null;
+        } else {
+            this.compressed = null;
+            this.content = content;
+        }
+    }
+
+    /**
+     * @param delegate
+     * @param templateData the chars of the parsed template ( shared, must not be changed ).
+     */
+    public MemoryMappedLocation(Location delegate, char[] templateData) {
+        this.delegate = delegate;
+        this.templateData = templateData;
+        this.compressed = null;
+        this.content = null;
+    }
+
+    /**
+     * @param delegate
+     * @param contentLocation the content is shared with this location.
+     */
+    public MemoryMappedLocation(Location delegate, MemoryMappedLocation contentLocation) {
+        this.delegate = delegate;
+        this.templateData = contentLocation.templateData;
+        this.compressed = contentLocation.compressed;
+        this.content = contentLocation.content;
+        this.lineIndexedContent = contentLocation.lineIndexedContent;
     }
 
     public Resource getResource() {
@@ -41,12 +94,65 @@ public class MemoryMappedLocation implements Location {
         return delegate.getColumnNumber();
     }
 
+    /**
+     * @return the content ( a new string unless the content is short ).
+     */
     public String getContent() {
-        return content;
+        if ( templateData != null ) {
+            return new String(templateData);
+        } else if ( compressed != null ) {
+            return decompress(compressed);
+        } else {
+            return content;
+        }
+    }
+
+    /**
+     * @return the content with its line offsets, null if there is no content.
+     */
+    public LineIndexedContent getLineIndexedContent() {
+        LineIndexedContent indexed = lineIndexedContent;
+        if ( indexed == null ) {
+            if ( templateData != null ) {
+                // only the offsets are extra, so keep them.
+                indexed = lineIndexedContent = new LineIndexedContent(templateData);
+            } else {
+                String string = getContent();
+                indexed = string == null? null : new LineIndexedContent(string.toCharArray());
+            }
+        }
+        return indexed;
+    }
+
+    /**
+     * @return the location of the specification.
+     */
+    public Location getDelegate() {
+        return delegate;
     }
 
     @Override
     public String toString() {
         return "<MemoryMapped>," + delegate.toString();
     }
+
+    private static byte[] compress(String content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length() / 4);
+        DeflaterOutputStream out = new DeflaterOutputStream(bytes);
+        try {
+            out.write(content.getBytes(ENCODING));
+            out.close();
+        } catch (IOException e) {
+            throw new ApplicationRuntimeException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private static String decompress(byte[] compressed) {
+        try {
+            return IOUtils.toString(new InflaterInputStream(new ByteArrayInputStream(compressed)), ENCODING);
+        } catch (IOException e) {
+            throw new ApplicationRuntimeException(e);
+        }
+    }
 }
@@ -13,34 +13,45 @@
  */
 package org.amplafi.flow.web.resolvers;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.LineNumberReader;
-import java.io.Reader;
-import java.io.StringReader;
 import java.io.InputStreamReader;
+import java.io.Reader;
 import java.net.URL;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.Map;
 
+import org.apache.commons.io.IOUtils;
 import org.apache.tapestry.IMarkupWriter;
 import org.apache.tapestry.IRequestCycle;
-import org.apache.tapestry.INamespace;
 import org.apache.tapestry.describe.RenderStrategy;
+import org.apache.tapestry.event.ResetEventListener;
 import org.apache.hivemind.Location;
 
 /**
  * Strategy for describing a {@link org.amplafi.flow.web.resolvers.MemoryMappedLocation}.
+ *
+ * The generated template of a flow component location is found in the {@link FlowLocationIndex}.
+ * Only the lines around the location are rendered; they are sliced out of a {@link LineIndexedContent}.
+ * The indexed content of resources is kept in a small LRU cache ( cleared when Tapestry's caches are reset ),
+ * so the same resource is not read again for every exception report.
  */
-public class MemoryMappedLocationRenderStrategy implements RenderStrategy {
-    private Map<Class<?>, String> templateMap;
+public class MemoryMappedLocationRenderStrategy implements RenderStrategy, ResetEventListener {
+    private FlowLocationIndex locationIndex;
     /**
      * Lines before and after the actual location to display.
      */
     private static final int RANGE = 5;
 
+    private int maxCachedResources = 32;
+
+    /**
+     * resource url to its content; access-ordered so the least recently rendered resources are dropped first.
+     */
+    private volatile Map<String, LineIndexedContent> resourceContents = createResourceContents();
+
     public void renderObject(Object object, IMarkupWriter writer, IRequestCycle cycle) {
-        Location location = enhancedLocation((Location) object,
-                cycle.getInfrastructure().getSpecificationSource().getApplicationNamespace());
+        Location location = enhancedLocation((Location) object);
 
         // Always print out the location as a string.
         writer.print(location.toString());
@@ -66,126 +77,122 @@ public class MemoryMappedLocationRenderStrategy implements RenderStrategy {
         }
 
         try {
-            writeResourceContent(writer, createReaderFromUrl(url), lineNumber);
+            writeResourceContent(writer, getResourceContent(url), lineNumber);
         } catch (IOException e) {
             // ignore
         }
     }
 
-    private Location enhancedLocation(Location location, INamespace containerNamespace) {
-        for(Map.Entry<Class<?>, String>entry:this.templateMap.entrySet()) {
-            String suffix = entry.getValue();
-            if (location.getResource()!=null
-                    && location.getResource().getPath().endsWith(suffix)) {
-                String flowCompName = location.getResource().getPath();
-                Location flowLocation = containerNamespace.getComponentSpecification(flowCompName).getLocation();
-                Location result;
-                if (flowLocation ==null || !(flowLocation instanceof MemoryMappedLocation)) {
-                    result = location;
-                } else {
-                    MemoryMappedLocation extra = (MemoryMappedLocation) flowLocation;
-                    result = new MemoryMappedLocation(location, extra.getContent());
-                }
-                location = result;
-            }
+    private Location enhancedLocation(Location location) {
+        if (location instanceof MemoryMappedLocation) {
+            return location;
+        }
+        MemoryMappedLocation flowLocation = locationIndex.get(location);
+        if (flowLocation == null) {
+            return location;
+        } else {
+            return new MemoryMappedLocation(location, flowLocation);
         }
-        return location;
     }
 
     private void handleMemoryLocation(MemoryMappedLocation location, IMarkupWriter writer, int lineNumber) {
-        String content = location.getContent();
+        LineIndexedContent content = location.getLineIndexedContent();
 
         if (content == null) {
             return;
         }
 
-        writeResourceContent(writer,
-                createReaderFromString(content),
-                lineNumber);
+        writeResourceContent(writer, content, lineNumber);
     }
 
-    private LineNumberReader createReaderFromString(String content) {
-        return new LineNumberReader(new BufferedReader(new StringReader(content)));
-    }
-
-    private LineNumberReader createReaderFromUrl(URL url) throws IOException {
-        return new LineNumberReader(new BufferedReader(new InputStreamReader(url.openStream())));
+    private LineIndexedContent getResourceContent(URL url) throws IOException {
+        String key = url.toExternalForm();
+        LineIndexedContent content = resourceContents.get(key);
+        if (content == null) {
+            Reader reader = new InputStreamReader(url.openStream());
+            try {
+                content = LineIndexedContent.read(reader);
+            } finally {
+                IOUtils.closeQuietly(reader);
+            }
+            resourceContents.put(key, content);
+        }
+        return content;
     }
 
-    private void writeResourceContent(IMarkupWriter writer, LineNumberReader reader, int lineNumber)
+    private void writeResourceContent(IMarkupWriter writer, LineIndexedContent content, int lineNumber)
     {
-        try {
-            writer.beginEmpty("br");
-            writer.begin("table");
-            writer.attribute("class", "location-content");
-
-            while(true) {
-                String line = reader.readLine();
-
-                if (line == null) {
-                    break;
-                }
-
-                int currentLine = reader.getLineNumber();
+        writer.beginEmpty("br");
+        writer.begin("table");
+        writer.attribute("class", "location-content");
 
-                if (currentLine > lineNumber + RANGE) {
-                    break;
-                }
+        int lastLine = Math.min(lineNumber + RANGE, content.getLineCount());
+        for (int currentLine = Math.max(lineNumber - RANGE, 1); currentLine <= lastLine; currentLine++) {
+            writer.begin("tr");
 
-                if (currentLine < lineNumber - RANGE) {
-                    continue;
-                }
+            if (currentLine == lineNumber) {
+                writer.attribute("class", "target-line");
+            }
 
-                writer.begin("tr");
+            writer.begin("td");
+            writer.attribute("class", "line-number");
+            writer.print(currentLine);
+            writer.end();
 
-                if (currentLine == lineNumber) {
-                    writer.attribute("class", "target-line");
-                }
+            writer.begin("td");
+            writer.print(content.getLine(currentLine));
+            writer.end("tr");
+            writer.println();
+        }
 
-                writer.begin("td");
-                writer.attribute("class", "line-number");
-                writer.print(currentLine);
-                writer.end();
+        writer.end("table");
+    }
 
-                writer.begin("td");
-                writer.print(line);
-                writer.end("tr");
-                writer.println();
+    private Map<String, LineIndexedContent> createResourceContents() {
+        final int max = maxCachedResources;
+        return Collections.synchronizedMap(new LinkedHashMap<String, LineIndexedContent>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, LineIndexedContent> eldest) {
+                return size() > max;
             }
+        });
+    }
 
-            reader.close();
-            reader = null;
-        }
-        catch (Exception ex) {
-            // Ignore it.
-        } finally {
-            writer.end("table");
-            close(reader);
-        }
+    /**
+     * @see org.apache.tapestry.event.ResetEventListener#resetEventDidOccur()
+     */
+    @Override
+    public void resetEventDidOccur() {
+        resourceContents.clear();
     }
 
-    private void close(Reader reader) {
-        try {
-            if (reader != null) {
-                reader.close();
-            }
-        }
-        catch (IOException ex) {
-            // Ignore
-        }
+    /**
+     * @param locationIndex the locationIndex to set
+     */
+    public void setLocationIndex(FlowLocationIndex locationIndex) {
+        this.locationIndex = locationIndex;
+    }
+
+    /**
+     * @return the locationIndex
+     */
+    public FlowLocationIndex getLocationIndex() {
+        return locationIndex;
     }
 
     /**
-     * @param templateMap the templateMap to set
+     * @param maxCachedResources how many resources to keep the indexed content of.
      */
-    public void setTemplateMap(Map<Class<?>, String> templateMap) {
-        this.templateMap = templateMap;
+    public void setMaxCachedResources(int maxCachedResources) {
+        this.maxCachedResources = maxCachedResources;
+        this.resourceContents = createResourceContents();
     }
 
     /**
-     * @return the templateMap
+     * @return the maxCachedResources
      */
-    public Map<Class<?>, String> getTemplateMap() {
-        return templateMap;
+    public int getMaxCachedResources() {
+        return maxCachedResources;
     }
 }
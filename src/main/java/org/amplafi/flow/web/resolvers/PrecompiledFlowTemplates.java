@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.amplafi.flow.Flow;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.logging.Log;
+
+/**
+ * The FullFlow component templates generated at build time by {@link FlowTemplateCompiler}.
+ *
+ * The manifest ( {@link #MANIFEST} ) maps each flow type name to the signature the template was generated with and to the
+ * classpath resource holding the template. The signature covers the {@link FlowTemplateSignature} of the definition and the
+ * classes and {@link org.apache.tapestry.annotations.Parameter}s of the components the template uses
+ * ( see {@link FlowAwareTemplateSourceDelegate#getPrecompiledSignature} ). A precompiled template is only used if the current
+ * definition and components still have the same signature, otherwise the template is generated as usual.
+ */
+public class PrecompiledFlowTemplates {
+
+    public static final String DIRECTORY = "META-INF/amplafi-flow-templates/";
+
+    public static final String MANIFEST = DIRECTORY + "manifest.properties";
+
+    public static final String SIGNATURE_SUFFIX = ".signature";
+
+    public static final String TEMPLATE_SUFFIX = ".template";
+
+    private final Map<String, String> signatures = new ConcurrentHashMap<String, String>();
+
+    private final Map<String, String> templateResources = new ConcurrentHashMap<String, String>();
+
+    private final ConcurrentMap<String, String> templates = new ConcurrentHashMap<String, String>();
+
+    private ClassLoader classLoader;
+
+    private Log log;
+
+    /**
+     * Read all the manifests on the classpath.
+     * @param loader
+     */
+    public void load(ClassLoader loader) {
+        this.classLoader = loader;
+        for(Properties manifest: loadAll(MANIFEST)) {
+            for(String key: manifest.stringPropertyNames()) {
+                if ( key.endsWith(SIGNATURE_SUFFIX)) {
+                    String flowTypeName = key.substring(0, key.length() - SIGNATURE_SUFFIX.length());
+                    String resource = manifest.getProperty(flowTypeName + TEMPLATE_SUFFIX);
+                    if ( resource != null ) {
+                        signatures.put(flowTypeName, manifest.getProperty(key));
+                        templateResources.put(flowTypeName, resource);
+                    }
+                }
+            }
+        }
+        if ( !signatures.isEmpty() && getLog().isDebugEnabled()) {
+            getLog().debug(signatures.size() + " precompiled flow templates available");
+        }
+    }
+
+    /**
+     * @param flow
+     * @param signature the signature of the current definition and components.
+     * @return the precompiled template or null if the flow was not precompiled or has changed since.
+     */
+    public String getComponentTemplate(Flow flow, String signature) {
+        String flowTypeName = flow.getFlowPropertyProviderName();
+        if ( !signature.equals(signatures.get(flowTypeName))) {
+            return null;
+        }
+        String template = templates.get(flowTypeName);
+        if ( template == null ) {
+            String resource = templateResources.get(flowTypeName);
+            InputStream stream = classLoader.getResourceAsStream(resource);
+            if ( stream == null ) {
+                getLog().warn(flowTypeName + ": precompiled template " + resource + " is missing");
+                signatures.remove(flowTypeName);
+                return null;
+            }
+            try {
+                template = IOUtils.toString(stream, "UTF-8");
+            } catch (IOException e) {
+                getLog().warn(flowTypeName + ": cannot read precompiled template " + resource, e);
+                signatures.remove(flowTypeName);
+                return null;
+            } finally {
+                IOUtils.closeQuietly(stream);
+            }
+            String existing = templates.putIfAbsent(flowTypeName, template);
+            if ( existing != null ) {
+                template = existing;
+            }
+        }
+        return template;
+    }
+
+    /**
+     * @return true if there are no precompiled templates.
+     */
+    public boolean isEmpty() {
+        return signatures.isEmpty();
+    }
+
+    private Iterable<Properties> loadAll(String resourceName) {
+        Map<URL, Properties> loaded = new LinkedHashMap<URL, Properties>();
+        try {
+            for(Enumeration<URL> resources = classLoader.getResources(resourceName); resources.hasMoreElements();) {
+                URL url = resources.nextElement();
+                InputStream stream = url.openStream();
+                try {
+                    Properties properties = new Properties();
+                    properties.load(stream);
+                    loaded.put(url, properties);
+                } finally {
+                    IOUtils.closeQuietly(stream);
+                }
+            }
+        } catch (IOException e) {
+            getLog().warn("while reading " + resourceName, e);
+        }
+        return loaded.values();
+    }
+
+    /**
+     * @param log the log to set
+     */
+    public void setLog(Log log) {
+        this.log = log;
+    }
+
+    /**
+     * @return the log
+     */
+    public Log getLog() {
+        return log;
+    }
+}
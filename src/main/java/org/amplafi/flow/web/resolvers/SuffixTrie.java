@@ -0,0 +1,90 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Trie of reversed suffixes. Finds the suffix of a string ( and the value mapped to the suffix )
+ * by walking the string backwards once, however many suffixes there are.
+ *
+ * Not thread-safe while being built; safe to share once all the suffixes are {@link #put(String, Object)}.
+ *
+ * @param <V> type of the values mapped to the suffixes.
+ */
+public class SuffixTrie<V> {
+
+    private final Node<V> root = new Node<V>();
+
+    /**
+     * @param suffix
+     * @param value
+     */
+    public void put(String suffix, V value) {
+        Node<V> node = root;
+        for (int i = suffix.length() - 1; i >= 0; i--) {
+            char c = suffix.charAt(i);
+            Node<V> child = node.children.get(c);
+            if ( child == null ) {
+                child = new Node<V>();
+                node.children.put(c, child);
+            }
+            node = child;
+        }
+        node.suffix = suffix;
+        node.value = value;
+    }
+
+    /**
+     * @param string
+     * @return the longest suffix of string that is in the trie; null if none.
+     */
+    public Match<V> find(String string) {
+        Node<V> node = root;
+        Node<V> found = null;
+        for (int i = string.length() - 1; i >= 0 && node != null; i--) {
+            node = node.children.get(string.charAt(i));
+            if ( node != null && node.suffix != null ) {
+                found = node;
+            }
+        }
+        return found == null? null: new Match<V>(found.suffix, found.value);
+    }
+
+    private static class Node<V> {
+        private final Map<Character, Node<V>> children = new HashMap<Character, Node<V>>(4);
+        private String suffix;
+        private V value;
+    }
+
+    /**
+     * A suffix found by {@link SuffixTrie#find(String)}.
+     * @param <V>
+     */
+    public static class Match<V> {
+        private final String suffix;
+        private final V value;
+        Match(String suffix, V value) {
+            this.suffix = suffix;
+            this.value = value;
+        }
+        public String getSuffix() {
+            return suffix;
+        }
+        public V getValue() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.Writer;
+import java.util.Arrays;
+
+/**
+ * Growable char buffer that generated templates are written into. Unlike {@link java.io.StringWriter} and
+ * {@link java.io.CharArrayWriter} it is not synchronized and it is meant to be {@link #reset()} and reused by
+ * the same thread, so the only copy made is {@link #toCharArray()}.
+ */
+public class TemplateBuffer extends Writer {
+
+    private char[] buffer;
+
+    private int count;
+
+    public TemplateBuffer(int initialCapacity) {
+        this.buffer = new char[initialCapacity];
+    }
+
+    @Override
+    public void write(int c) {
+        ensureCapacity(count + 1);
+        buffer[count++] = (char) c;
+    }
+
+    @Override
+    public void write(char[] chars, int offset, int length) {
+        ensureCapacity(count + length);
+        System.arraycopy(chars, offset, buffer, count, length);
+        count += length;
+    }
+
+    public void write(char[] chars) {
+        write(chars, 0, chars.length);
+    }
+
+    @Override
+    public void write(String string, int offset, int length) {
+        ensureCapacity(count + length);
+        string.getChars(offset, offset + length, buffer, count);
+        count += length;
+    }
+
+    @Override
+    public void write(String string) {
+        write(string, 0, string.length());
+    }
+
+    /**
+     * @return the chars written so far ( exact size ).
+     */
+    public char[] toCharArray() {
+        return Arrays.copyOf(buffer, count);
+    }
+
+    /**
+     * @param start
+     * @param end
+     * @return copy of the chars from start ( inclusive ) to end ( exclusive ).
+     */
+    public char[] toCharArray(int start, int end) {
+        return Arrays.copyOfRange(buffer, start, end);
+    }
+
+    /**
+     * @return number of chars written.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the number of chars that can be written without growing the buffer.
+     */
+    public int capacity() {
+        return buffer.length;
+    }
+
+    /**
+     * discard the content, keeping the buffer.
+     */
+    public void reset() {
+        count = 0;
+    }
+
+    @Override
+    public String toString() {
+        return new String(buffer, 0, count);
+    }
+
+    @Override
+    public void flush() {
+    }
+
+    @Override
+    public void close() {
+    }
+
+    private void ensureCapacity(int capacity) {
+        if ( capacity > buffer.length ) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, capacity));
+        }
+    }
+}
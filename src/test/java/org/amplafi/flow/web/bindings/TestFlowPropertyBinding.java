@@ -0,0 +1,301 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.bindings;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import org.amplafi.flow.FlowActivity;
+import org.amplafi.flow.FlowActivityPhase;
+import org.amplafi.flow.FlowPropertyDefinition;
+import org.amplafi.flow.FlowState;
+import org.amplafi.flow.FlowStateProvider;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.Location;
+import org.apache.tapestry.IActionListener;
+import org.apache.tapestry.IBinding;
+import org.apache.tapestry.IComponent;
+import org.apache.tapestry.IPage;
+import org.apache.tapestry.IRender;
+import org.apache.tapestry.IRequestCycle;
+import org.apache.tapestry.binding.BindingFactory;
+import org.apache.tapestry.coerce.ValueConverter;
+import org.apache.tapestry.form.AbstractFormComponent;
+import org.apache.tapestry.form.ValidatableField;
+import org.apache.tapestry.listener.ListenerInvoker;
+import org.easymock.IAnswer;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.easymock.classextension.EasyMock.*;
+
+/**
+ * Tests {@link FlowPropertyBinding}.
+ */
+public class TestFlowPropertyBinding extends Assert {
+
+    /**
+     * A cached read is used until any binding is set.
+     */
+    @Test
+    public void testSetObjectInvalidatesCachedReads() {
+        Fixture fixture = new Fixture();
+        FlowState flowState = fixture.flowState;
+        expect(flowState.getProperty("name", Object.class)).andReturn("first");
+        expect(flowState.getProperty("other", Object.class)).andReturn("other");
+        flowState.setProperty("name", "second");
+        expect(flowState.getProperty("name", Object.class)).andReturn("second");
+        expect(flowState.getProperty("other", Object.class)).andReturn("other changed");
+        replay(flowState);
+
+        FlowPropertyBinding name = fixture.createBinding("name");
+        name.setCacheReads(true);
+        FlowPropertyBinding other = fixture.createBinding("other");
+        other.setCacheReads(true);
+        assertEquals(name.getObject(Object.class), "first");
+        assertEquals(name.getObject(Object.class), "first");
+        assertEquals(other.getObject(Object.class), "other");
+        assertEquals(other.getObject(Object.class), "other");
+
+        name.setObject("second");
+        // both bindings read again: other may be derived from name.
+        assertEquals(name.getObject(Object.class), "second");
+        assertEquals(other.getObject(Object.class), "other changed");
+        verify(flowState);
+    }
+
+    /**
+     * A listener may change the flow state without a binding: the cached reads are dropped after it runs.
+     */
+    @Test
+    public void testListenerInvalidatesCachedReads() {
+        Fixture fixture = new Fixture();
+        FlowState flowState = fixture.flowState;
+        IActionListener listener = createMock(IActionListener.class);
+        ListenerInvoker invoker = createMock(ListenerInvoker.class);
+        expect(flowState.getProperty("name", Object.class)).andReturn("first");
+        invoker.invokeListener(listener, fixture.root, fixture.cycle);
+        expect(flowState.getProperty("name", Object.class)).andReturn("changed by listener");
+        replay(flowState, listener, invoker);
+
+        FlowPropertyBinding name = fixture.createBinding("name");
+        name.setCacheReads(true);
+        assertEquals(name.getObject(Object.class), "first");
+        assertEquals(name.getObject(Object.class), "first");
+        new FlowPropertyReadCacheFilter().invokeListener(listener, fixture.root, fixture.cycle, invoker);
+        assertEquals(name.getObject(Object.class), "changed by listener");
+        verify(flowState, invoker);
+    }
+
+    /**
+     * The values read while the form rewinds are not used when the page renders.
+     */
+    @Test
+    public void testReadCacheResetBetweenRewindAndRender() {
+        Fixture fixture = new Fixture();
+        FlowState flowState = fixture.flowState;
+        expect(flowState.getProperty("name", Object.class)).andReturn("rewind");
+        expect(flowState.getProperty("name", Object.class)).andReturn("render");
+        replay(flowState);
+
+        FlowPropertyBinding name = fixture.createBinding("name");
+        name.setCacheReads(true);
+        fixture.rewinding = true;
+        assertEquals(name.getObject(Object.class), "rewind");
+        assertEquals(name.getObject(Object.class), "rewind");
+        fixture.rewinding = false;
+        assertEquals(name.getObject(Object.class), "render");
+        assertEquals(name.getObject(Object.class), "render");
+        verify(flowState);
+    }
+
+    /**
+     * While the form rewinds, a binding that is rewind-neutral in the flow does not read the flow state: it returns the literal
+     * default value or null. A binding with a default value that is not a literal, a binding that is rewind-neutral only in
+     * other flows, and all bindings while the page renders, read the flow state.
+     */
+    @Test
+    public void testRewindNeutral() {
+        Fixture fixture = new Fixture();
+        FlowState flowState = fixture.flowState;
+        expect(flowState.getProperty("count", Object.class)).andReturn(Integer.valueOf(3)).times(3);
+        expect(flowState.getProperty("name", Object.class)).andReturn("fred").times(2);
+        expect(flowState.getProperty("other", Object.class)).andReturn(null);
+        replay(flowState);
+
+        Set<String> thisFlow = Collections.singleton(Fixture.FLOW_TYPE);
+        FlowPropertyBinding literal = fixture.createBinding("count=12");
+        literal.setRewindNeutralFlowTypes(thisFlow);
+        FlowPropertyBinding noDefault = fixture.createBinding("other");
+        noDefault.setRewindNeutralFlowTypes(thisFlow);
+        FlowPropertyBinding computed = fixture.createBinding("name=form@defaultName");
+        computed.setRewindNeutralFlowTypes(thisFlow);
+        FlowPropertyBinding otherFlow = fixture.createBinding("count");
+        otherFlow.setRewindNeutralFlowTypes(Collections.singleton("OtherFlow"));
+        FlowPropertyBinding notNeutral = fixture.createBinding("count");
+
+        fixture.rewinding = true;
+        assertEquals(literal.getObject(Object.class), Integer.valueOf(12));
+        assertNull(noDefault.getObject(Object.class));
+        assertEquals(computed.getObject(Object.class), "fred");
+        assertEquals(otherFlow.getObject(Object.class), Integer.valueOf(3));
+        assertEquals(notNeutral.getObject(Object.class), Integer.valueOf(3));
+
+        fixture.rewinding = false;
+        assertEquals(literal.getObject(Object.class), Integer.valueOf(3));
+        assertEquals(computed.getObject(Object.class), "fred");
+        assertNull(noDefault.getObject(Object.class));
+        verify(flowState);
+    }
+
+    @Test
+    public void testRewindNeutralPropertyNames() {
+        FlowPropertyBindingFactory factory = new FlowPropertyBindingFactory();
+        factory.setRewindNeutralPropertyNames(null);
+        assertTrue(factory.getRewindNeutralProperties().isEmpty());
+        factory.setRewindNeutralPropertyNames("");
+        assertTrue(factory.getRewindNeutralProperties().isEmpty());
+        factory.setRewindNeutralPropertyNames("Signup.count, Signup.name, Profile.name");
+        assertEquals(factory.getRewindNeutralProperties().get("count"), Collections.singleton("Signup"));
+        assertEquals(factory.getRewindNeutralProperties().get("name"), new HashSet<String>(Arrays.asList("Signup", "Profile")));
+        try {
+            factory.setRewindNeutralPropertyNames("count");
+            fail("the flow type is required");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * A form component is decorated only by the first binding it reads, even when the bindings are different instances.
+     */
+    @Test
+    public void testFormComponentDecoratedOnce() {
+        Fixture fixture = new Fixture();
+        FormField field = createMock(FormField.class);
+        FlowActivity activity = createMock(FlowActivity.class);
+        FlowPropertyDefinition definition = createMock(FlowPropertyDefinition.class);
+        BindingFactory validationBindingFactory = createMock(BindingFactory.class);
+        IBinding validatorsBinding = createMock(IBinding.class);
+        fixture.render = field;
+        fixture.activity = activity;
+
+        expect(activity.getFlowPropertyDefinition("name")).andReturn(definition);
+        expect(definition.isDynamic()).andReturn(false);
+        expect(definition.getValidators()).andReturn(null);
+        expect(definition.getPropertyRequired()).andReturn(FlowActivityPhase.advance);
+        expect(field.getBinding("validators")).andReturn(null);
+        expect(validationBindingFactory.createBinding(same(field), eq(""), eq("required"), (Location) isNull())).andReturn(validatorsBinding);
+        field.setBinding("validators", validatorsBinding);
+        expect(fixture.flowState.getProperty("name", Object.class)).andReturn("fred");
+        expect(fixture.flowState.getProperty("other", Object.class)).andReturn("other");
+        replay(field, activity, definition, validationBindingFactory, validatorsBinding, fixture.flowState);
+
+        FlowPropertyBindingFactory factory = new FlowPropertyBindingFactory();
+        factory.setValueConverter(fixture.valueConverter);
+        factory.setValidationBindingFactory(validationBindingFactory);
+        FlowPropertyBinding name = (FlowPropertyBinding) factory.createBinding(fixture.root, "name binding", "name", null);
+        FlowPropertyBinding other = (FlowPropertyBinding) factory.createBinding(fixture.root, "other binding", "other", null);
+        assertSame(name.getDecorated(), other.getDecorated());
+
+        assertEquals(name.getObject(Object.class), "fred");
+        // the definition of "other" is not even looked up.
+        assertEquals(other.getObject(Object.class), "other");
+        assertTrue(other.getDecorated().contains(field));
+        verify(field, activity, definition, validationBindingFactory, fixture.flowState);
+    }
+
+    /**
+     * A mocked request cycle ( with working attributes ), page and flow component to create the bindings for.
+     * The {@link #flowState} is left to the test to train and replay.
+     */
+    private static class Fixture {
+        private static final String FLOW_TYPE = "TestFlow";
+        private final Map<String, Object> attributes = new HashMap<String, Object>();
+        private boolean rewinding;
+        /**
+         * the component being rendered ( or rewound ).
+         */
+        private IRender render;
+        private FlowActivity activity;
+        private final IRequestCycle cycle = createMock(IRequestCycle.class);
+        private final FlowState flowState = createMock(FlowState.class);
+        private final FlowComponent root = createMock(FlowComponent.class);
+        private final ValueConverter valueConverter = createMock(ValueConverter.class);
+
+        Fixture() {
+            IPage page = createMock(IPage.class);
+            expect(page.getRequestCycle()).andStubReturn(cycle);
+            expect(root.getPage()).andStubReturn(page);
+            expect(root.getFlowState()).andStubReturn(flowState);
+            expect(cycle.isRewinding()).andStubAnswer(new IAnswer<Boolean>() {
+                public Boolean answer() {
+                    return rewinding;
+                }
+            });
+            expect(cycle.getAttribute(isA(String.class))).andStubAnswer(new IAnswer<Object>() {
+                public Object answer() {
+                    return attributes.get(getCurrentArguments()[0]);
+                }
+            });
+            cycle.setAttribute(isA(String.class), anyObject());
+            expectLastCall().andStubAnswer(new IAnswer<Object>() {
+                public Object answer() {
+                    attributes.put((String) getCurrentArguments()[0], getCurrentArguments()[1]);
+                    return null;
+                }
+            });
+            cycle.removeAttribute(isA(String.class));
+            expectLastCall().andStubAnswer(new IAnswer<Object>() {
+                public Object answer() {
+                    attributes.remove(getCurrentArguments()[0]);
+                    return null;
+                }
+            });
+            expect(cycle.renderStackPeek()).andStubAnswer(new IAnswer<IRender>() {
+                public IRender answer() {
+                    return render;
+                }
+            });
+            expect(valueConverter.coerceValue(anyObject(), isA(Class.class))).andStubAnswer(new IAnswer<Object>() {
+                public Object answer() {
+                    return getCurrentArguments()[0];
+                }
+            });
+            expect(flowState.getFlowTypeName()).andStubReturn(FLOW_TYPE);
+            expect(flowState.getCurrentActivity()).andStubAnswer(new IAnswer<FlowActivity>() {
+                public FlowActivity answer() {
+                    return activity;
+                }
+            });
+            replay(page, root, cycle, valueConverter);
+        }
+
+        FlowPropertyBinding createBinding(String expression) {
+            FlowPropertyBinding binding = new FlowPropertyBinding(root, "test binding", valueConverter, null, expression, null, null);
+            binding.setLog(LogFactory.getLog(TestFlowPropertyBinding.class));
+            return binding;
+        }
+    }
+
+    public abstract static class FlowComponent implements IComponent, FlowStateProvider {
+    }
+
+    public abstract static class FormField extends AbstractFormComponent implements ValidatableField {
+    }
+}
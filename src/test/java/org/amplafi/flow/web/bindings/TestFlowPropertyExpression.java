@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.bindings;
+
+import org.amplafi.flow.FlowActivityPhase;
+import org.amplafi.flow.FlowPropertyDefinition;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.easymock.classextension.EasyMock.*;
+
+/**
+ * Test {@link FlowPropertyExpression}.
+ */
+public class TestFlowPropertyExpression extends Assert {
+
+    @Test
+    public void testParse() {
+        FlowPropertyExpression expression = FlowPropertyExpression.parse("name");
+        assertEquals(expression.getKey(), "name");
+        assertFalse(expression.hasDefaultValue());
+
+        expression = FlowPropertyExpression.parse("name=");
+        assertEquals(expression.getKey(), "name=");
+        assertFalse(expression.hasDefaultValue());
+
+        expression = FlowPropertyExpression.parse("name=form@defaultName");
+        assertEquals(expression.getKey(), "name");
+        assertEquals(expression.getComponentName(), "form");
+        assertEquals(expression.getDefaultValue(), "defaultName");
+        assertFalse(expression.isLiteral());
+    }
+
+    @Test
+    public void testLiterals() {
+        assertLiteral("count=12", Integer.valueOf(12));
+        assertLiteral("count=-1", Integer.valueOf(-1));
+        assertLiteral("count=0", Integer.valueOf(0));
+        assertLiteral("rate=1.5", Double.valueOf(1.5));
+        assertLiteral("enabled=true", Boolean.TRUE);
+        assertLiteral("enabled=ognl:false", Boolean.FALSE);
+        assertLiteral("name=null", null);
+        assertLiteral("name='fred'", "fred");
+        assertLiteral("name=\"fred\"", "fred");
+        assertLiteral("initial='f'", Character.valueOf('f'));
+        assertLiteral("name=literal:a:b", "a:b");
+
+        assertFalse(FlowPropertyExpression.parse("name=defaultName").isLiteral());
+        assertFalse(FlowPropertyExpression.parse("name=message:default-name").isLiteral());
+        assertFalse(FlowPropertyExpression.parse("name='a' + 'b'").isLiteral());
+        assertFalse(FlowPropertyExpression.parse("count=12345678901").isLiteral());
+        // octal for OGNL
+        assertFalse(FlowPropertyExpression.parse("count=010").isLiteral());
+        assertFalse(FlowPropertyExpression.parse("count=-07").isLiteral());
+    }
+
+    /**
+     * The validators follow changes made to the definition ( the definition is not remembered ).
+     */
+    @Test
+    public void testValidators() {
+        FlowPropertyExpression expression = FlowPropertyExpression.parse("name");
+        FlowPropertyDefinition definition = createMock(FlowPropertyDefinition.class);
+        expect(definition.getValidators()).andReturn("minLength=2");
+        expect(definition.getPropertyRequired()).andReturn(FlowActivityPhase.advance);
+        expect(definition.getValidators()).andReturn("minLength=2");
+        expect(definition.getPropertyRequired()).andReturn(FlowActivityPhase.advance);
+        expect(definition.getValidators()).andReturn("minLength=3");
+        expect(definition.getPropertyRequired()).andReturn(FlowActivityPhase.advance);
+        expect(definition.getValidators()).andReturn(null);
+        expect(definition.getPropertyRequired()).andReturn(null);
+        replay(definition);
+
+        String validators = expression.getValidators(definition);
+        assertEquals(validators, "required,minLength=2");
+        assertSame(expression.getValidators(definition), validators);
+        assertEquals(expression.getValidators(definition), "required,minLength=3");
+        assertNull(expression.getValidators(definition));
+        verify(definition);
+    }
+
+    private void assertLiteral(String expression, Object expected) {
+        FlowPropertyExpression parsed = FlowPropertyExpression.parse(expression);
+        assertTrue(parsed.isLiteral(), expression);
+        assertEquals(parsed.getLiteralValue(), expected, expression);
+    }
+}
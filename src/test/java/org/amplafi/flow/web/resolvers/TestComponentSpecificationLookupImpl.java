@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.util.Collections;
+
+import org.amplafi.flow.web.components.FullFlowComponent;
+import org.apache.tapestry.INamespace;
+import org.apache.tapestry.IRequestCycle;
+import org.apache.tapestry.resolver.ComponentSpecificationResolver;
+import org.apache.tapestry.resolver.ISpecificationResolverDelegate;
+import org.apache.tapestry.spec.ComponentSpecification;
+import org.apache.tapestry.spec.IComponentSpecification;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.easymock.classextension.EasyMock.*;
+
+/**
+ * Tests {@link ComponentSpecificationLookupImpl}.
+ */
+public class TestComponentSpecificationLookupImpl extends Assert {
+
+    /**
+     * The namespace, the flow components and the delegate are tried before Tapestry's resolver.
+     */
+    @Test
+    public void testResolveOrder() {
+        IRequestCycle cycle = createMock(IRequestCycle.class);
+        INamespace application = createMock(INamespace.class);
+        INamespace library = createMock(INamespace.class);
+        ISpecificationResolverDelegate delegate = createMock(ISpecificationResolverDelegate.class);
+        ComponentSpecificationResolver resolver = createMock(ComponentSpecificationResolver.class);
+        IComponentSpecification declared = new ComponentSpecification();
+        IComponentSpecification delegated = new ComponentSpecification();
+        IComponentSpecification searched = new ComponentSpecification();
+
+        expect(application.getChildNamespace("flow")).andReturn(library);
+        expect(library.containsComponentType("FlowBorder")).andReturn(true);
+        expect(library.getComponentSpecification("FlowBorder")).andReturn(declared);
+        expect(application.containsComponentType("FooFullFlow")).andReturn(false);
+        expect(application.containsComponentType("Delegated")).andReturn(false);
+        expect(delegate.findComponentSpecification(cycle, application, "Delegated")).andReturn(delegated);
+        expect(application.containsComponentType("Searched")).andReturn(false);
+        expect(delegate.findComponentSpecification(cycle, application, "Searched")).andReturn(null);
+        resolver.resolve(cycle, application, "Searched", null);
+        expect(resolver.getSpecification()).andReturn(searched);
+        expect(resolver.getNamespace()).andReturn(application);
+        expect(resolver.getType()).andReturn("Searched");
+        replay(cycle, application, library, delegate, resolver);
+
+        FlowSpecificationCache flowSpecificationCache = new FlowSpecificationCache();
+        flowSpecificationCache.setTemplateMap(Collections.<Class<?>, String>singletonMap(FullFlowComponent.class, "FullFlow"));
+        ComponentSpecificationLookupImpl lookup = new ComponentSpecificationLookupImpl(resolver);
+        lookup.setFlowSpecificationCache(flowSpecificationCache);
+        lookup.setDelegate(delegate);
+
+        ComponentResolution resolution = lookup.resolve(cycle, application, "flow:FlowBorder", null);
+        assertSame(resolution.getSpecification(), declared);
+        assertSame(resolution.getNamespace(), library);
+        assertEquals(resolution.getType(), "FlowBorder");
+        resolution = lookup.resolve(cycle, application, "FooFullFlow", null);
+        assertSame(resolution.getSpecification(), flowSpecificationCache.getComponentSpecification("FooFullFlow"));
+        assertSame(lookup.resolve(cycle, application, "Delegated", null).getSpecification(), delegated);
+        assertSame(lookup.resolve(cycle, application, "Searched", null).getSpecification(), searched);
+        verify(cycle, application, library, delegate, resolver);
+    }
+}
@@ -25,18 +25,24 @@ import org.amplafi.flow.flowproperty.FlowPropertyDefinitionImpl;
 import org.amplafi.flow.web.components.FlowBorder;
 import org.amplafi.flow.web.components.FullFlowComponent;
 import org.apache.tapestry.IComponent;
+import org.apache.tapestry.IMarkupWriter;
+import org.apache.tapestry.INamespace;
 import org.apache.tapestry.IRequestCycle;
 import org.apache.tapestry.annotations.Parameter;
 import org.apache.tapestry.asset.ExternalResource;
+import org.apache.tapestry.markup.MarkupWriterImpl;
+import org.apache.tapestry.markup.UTFMarkupFilter;
 import org.apache.tapestry.parse.ComponentTemplate;
 import org.apache.tapestry.parse.ITemplateParser;
 import org.apache.tapestry.parse.TemplateToken;
 import org.apache.tapestry.parse.ITemplateParserDelegate;
 import org.apache.tapestry.parse.TemplateParseException;
 import org.apache.tapestry.resolver.ComponentSpecificationResolver;
+import org.apache.tapestry.spec.ComponentSpecification;
 import org.apache.tapestry.spec.IComponentSpecification;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.ApplicationRuntimeException;
 import org.apache.hivemind.Location;
 import org.apache.hivemind.Resource;
 import org.testng.Assert;
@@ -46,8 +52,12 @@ import org.easymock.EasyMock;
 
 import static org.amplafi.flow.web.resolvers.FlowAwareTemplateSourceDelegate.*;
 import static org.easymock.classextension.EasyMock.*;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 
 /**
  * Test {@link FlowAwareTemplateSourceDelegate}.
@@ -128,6 +138,140 @@ public class TestFlowAwareTemplateSourceDelegate extends Assert {
                 "<div>[Flow " + type + " has no activites]</div>");
     }
 
+    /**
+     * The template for a flow is only generated and parsed once.
+     * @param delegate
+     */
+    @Test(dataProvider="FlowAwareTemplateSourceDelegate")
+    public void testCachedTemplate(FlowAwareTemplateSourceDelegate delegate) {
+        String type = "Cached";
+        IComponentSpecification compSpec = createFlowPageSpec(type, 2);
+        IComponent component = createFlowPageComponent(compSpec, 2);
+        FlowImplementor flow = createFlow2(type, 1);
+        FlowDefinitionsManager flowDefinitionsManager = createMock(FlowDefinitionsManager.class);
+        expect(flowDefinitionsManager.getFlowDefinition(type)).andReturn(flow).times(2);
+        delegate.setFlowDefinitionsManager(flowDefinitionsManager);
+        ITemplateParser templateParser = trainParser(delegate, 1);
+        IRequestCycle cycle = createMock(IRequestCycle.class);
+
+        replay(component, compSpec, flowDefinitionsManager, cycle);
+        ComponentTemplate first = delegate.findTemplate(cycle, component, Locale.US);
+        ComponentTemplate second = delegate.findTemplate(cycle, component, Locale.US);
+        assertSame(second, first);
+        verify(templateParser, flowDefinitionsManager);
+    }
+
+    /**
+     * A changed flow definition causes the template to be regenerated.
+     * @param delegate
+     */
+    @Test(dataProvider="FlowAwareTemplateSourceDelegate")
+    public void testChangedFlowDefinition(FlowAwareTemplateSourceDelegate delegate) {
+        String type = "Changed";
+        IComponentSpecification compSpec = createFlowPageSpec(type, 2);
+        IComponent component = createFlowPageComponent(compSpec, 2);
+        FlowDefinitionsManager flowDefinitionsManager = createMock(FlowDefinitionsManager.class);
+        expect(flowDefinitionsManager.getFlowDefinition(type)).andReturn(createFlow2(type, 1));
+        expect(flowDefinitionsManager.getFlowDefinition(type)).andReturn(createFlow2(type, 2));
+        delegate.setFlowDefinitionsManager(flowDefinitionsManager);
+        ITemplateParser templateParser = trainParser(delegate, 2);
+        IRequestCycle cycle = createMock(IRequestCycle.class);
+
+        replay(component, compSpec, flowDefinitionsManager, cycle);
+        ComponentTemplate first = delegate.findTemplate(cycle, component, Locale.US);
+        ComponentTemplate second = delegate.findTemplate(cycle, component, Locale.US);
+        assertNotSame(second, first);
+        verify(templateParser, flowDefinitionsManager);
+    }
+
+    /**
+     * A component that cannot be resolved without a request cycle stops the warm-up of the flow:
+     * the activity is not made invisible and nothing is cached.
+     * @param delegate
+     */
+    @Test(dataProvider="FlowAwareTemplateSourceDelegate")
+    public void testWarmUpWithUnresolvedComponent(FlowAwareTemplateSourceDelegate delegate) {
+        String type = "WarmUp";
+        FlowImplementor flow = createFlow2(type, 1);
+        FlowDefinitionsManager flowDefinitionsManager = createMock(FlowDefinitionsManager.class);
+        expect(flowDefinitionsManager.getFlowDefinition(type)).andReturn(flow);
+        delegate.setFlowDefinitionsManager(flowDefinitionsManager);
+        ComponentSpecificationLookup lookup = createMock(ComponentSpecificationLookup.class);
+        expect(lookup.resolve(null, null, "comp_0", null)).andThrow(new ApplicationRuntimeException("no cycle"));
+        delegate.setComponentSpecificationLookup(lookup);
+        ITemplateParser templateParser = createMock(ITemplateParser.class);
+        delegate.setParser(templateParser);
+
+        replay(flowDefinitionsManager, lookup, templateParser);
+        try {
+            delegate.preloadTemplates(type, new ExternalResource("dummy", null), null, null, Locale.US);
+            fail("warm-up should have been abandoned");
+        } catch (FlowTemplateWarmUp.DeferredTemplateException e) {
+            // expected
+        }
+        assertFalse(flow.getActivity(0).isInvisible());
+        assertFalse(delegate.getTemplateCache().isUnresolvable(null, "comp_0"));
+        verify(flowDefinitionsManager, lookup, templateParser);
+    }
+
+    /**
+     * The flow name ( part of the form's jwcid ) is written the way the markup writer writes it, so a name with
+     * special characters changes nothing but the name in the template.
+     * @param delegate
+     */
+    @Test(dataProvider="FlowAwareTemplateSourceDelegate")
+    public void testFlowNameInTemplate(FlowAwareTemplateSourceDelegate delegate) {
+        delegate.setComponentSpecificationLookup(new FakeComponentLookup());
+        IRequestCycle cycle = createMock(IRequestCycle.class);
+        String plain = delegate.createComponentTemplate(createFlow2("Plain", 1), cycle, null, null);
+        String specialName = "Sp<e&c\"i'al \u00e9";
+        String special = delegate.createComponentTemplate(createFlow2(specialName, 1), cycle, null, null);
+
+        StringWriter form = new StringWriter();
+        IMarkupWriter writer = new MarkupWriterImpl("text/html", new PrintWriter(form), new UTFMarkupFilter());
+        writer.begin("form");
+        writer.attribute("jwcid", specialName + "FlowForm@Form");
+        writer.closeTag();
+        writer.flush();
+
+        String plainForm = "<form jwcid=\"PlainFlowForm@Form\"";
+        assertTrue(plain.contains(plainForm), plain);
+        assertEqualsExcludingWhitespace(StringUtils.substringBefore(plain, "<div jwcid=\"fc0@Block\""),
+            TEMPLATE_PREFIX.replace("comp_0FlowForm", "PlainFlowForm"));
+        assertTrue(StringUtils.deleteWhitespace(plain).endsWith(StringUtils.deleteWhitespace(TEMPLATE_SUFFIX)), plain);
+        assertEquals(special, plain.replace(plainForm, StringUtils.removeEnd(form.toString(), ">")));
+    }
+
+    /**
+     * A template spliced from the fragments of an earlier definition must be the same as a template generated from scratch,
+     * both when an activity changes and when the class ( and so the parameters ) of an activity's component changes.
+     * @param delegate
+     */
+    @Test(dataProvider="FlowAwareTemplateSourceDelegate")
+    public void testSplicedTemplateEqualsRegenerated(FlowAwareTemplateSourceDelegate delegate) {
+        FakeComponentLookup lookup = new FakeComponentLookup();
+        delegate.setComponentSpecificationLookup(lookup);
+        IRequestCycle cycle = createMock(IRequestCycle.class);
+        String original = delegate.createComponentTemplate(createFlow2("Spliced", 3), cycle, null, null);
+
+        FlowImplementor changed = createFlow2("Spliced", 3);
+        ((FlowActivityImpl)changed.getActivity(1)).setComponentName("other_1");
+        lookup.setComponentClass("comp_0", OtherComponent.class);
+        String spliced = delegate.createComponentTemplate(changed, cycle, null, null);
+
+        FlowAwareTemplateSourceDelegate regenerating = new FlowAwareTemplateSourceDelegate();
+        regenerating.setLog(LogFactory.getLog(getClass()));
+        regenerating.setComponentSpecificationLookup(lookup);
+        regenerating.setParameterIndex(delegate.getParameterIndex());
+        String regenerated = regenerating.createComponentTemplate(changed, cycle, null, null);
+
+        assertEquals(spliced, regenerated);
+        assertFalse(original.contains("otherParameter"), original);
+        assertTrue(spliced.contains("otherParameter"), spliced);
+        assertTrue(spliced.contains("@other_1"), spliced);
+        assertTrue(spliced.contains("@comp_2"), spliced);
+    }
+
     /**
      * This flow has some activities.
      * @param delegate
@@ -258,6 +402,10 @@ public class TestFlowAwareTemplateSourceDelegate extends Assert {
     }
 
     private void trainParser(FlowAwareTemplateSourceDelegate delegate) {
+        trainParser(delegate, 1);
+    }
+
+    private ITemplateParser trainParser(FlowAwareTemplateSourceDelegate delegate, int times) {
         // we dont want to mock the world, so we just mock this
         ITemplateParser templateParser = createMock(ITemplateParser.class);
         delegate.setParser(templateParser);
@@ -265,11 +413,33 @@ public class TestFlowAwareTemplateSourceDelegate extends Assert {
             expect(templateParser.parse(EasyMock.isA(char[].class),
                     EasyMock.isA(ITemplateParserDelegate.class),
                     EasyMock.isA(Resource.class)
-            )).andReturn(new TemplateToken[0]);
+            )).andReturn(new TemplateToken[0]).times(times);
         } catch (TemplateParseException e) {
             fail();
         }
         replay(templateParser);
+        return templateParser;
+    }
+
+    private IComponentSpecification createFlowPageSpec(String flowTypeName, int times) {
+        IComponentSpecification compSpec = createMock(IComponentSpecification.class);
+        expect(compSpec.getPublicId()).andReturn(FlowAwareSpecResolverDelegate.ID).times(times);
+        expect(compSpec.getComponentClassName()).andReturn(Object.class.getName()).times(times);
+        expect(compSpec.getDescription()).andReturn(flowTypeName).times(times);
+        Resource res = new ExternalResource("dummy", null);
+        expect(compSpec.getSpecificationLocation()).andReturn(res).anyTimes();
+        expect(compSpec.getLocation()).andReturn(null).times(times);
+        compSpec.setLocation(isA(Location.class));
+        expectLastCall().times(times);
+        return compSpec;
+    }
+
+    private IComponent createFlowPageComponent(IComponentSpecification compSpec, int times) {
+        IComponent component = createMock(IComponent.class);
+        expect(component.getSpecification()).andReturn(compSpec).times(times);
+        expect(component.getNamespace()).andReturn(null).anyTimes();
+        expect(component.getLocation()).andReturn(null).anyTimes();
+        return component;
     }
 
     private FlowImplementor createFlowWithProperties(String componentName) {
@@ -335,6 +505,29 @@ public class TestFlowAwareTemplateSourceDelegate extends Assert {
                 StringUtils.join(two.split("\\s")));
     }
 
+    /**
+     * Resolves the FlowBorder to {@link FlowBorder} and any other component to {@link FakeComponent}. The same
+     * specification is returned for a type each time so that its class can be changed with {@link #setComponentClass(String, Class)}.
+     */
+    private static class FakeComponentLookup implements ComponentSpecificationLookup {
+        private final Map<String, IComponentSpecification> specifications = new HashMap<String, IComponentSpecification>();
+        public ComponentResolution resolve(IRequestCycle cycle, INamespace containerNamespace, String type, Location location) {
+            return new ComponentResolution(getSpecification(type), containerNamespace, type);
+        }
+        public void setComponentClass(String type, Class<?> componentClass) {
+            getSpecification(type).setComponentClassName(componentClass.getName());
+        }
+        private IComponentSpecification getSpecification(String type) {
+            IComponentSpecification specification = specifications.get(type);
+            if ( specification == null ) {
+                specification = new ComponentSpecification();
+                specification.setComponentClassName(FLOW_BORDER_COMPONENT.equals(type)? FlowBorder.class.getName() : FakeComponent.class.getName());
+                specifications.put(type, specification);
+            }
+            return specification;
+        }
+    }
+
     public abstract static class FakeComponent implements IComponent {
         @Parameter(required=true)
         public abstract List<Object> getCategorySelection();
@@ -343,4 +536,11 @@ public class TestFlowAwareTemplateSourceDelegate extends Assert {
         @Parameter(defaultValue="literal:fling")
         public abstract String getLiteralFling();
     }
+
+    public abstract static class OtherComponent implements IComponent {
+        @Parameter(required=true)
+        public abstract List<Object> getCategorySelection();
+        @Parameter(required=true)
+        public abstract String getOtherParameter();
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.File;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Collections;
+
+import org.amplafi.flow.Flow;
+import org.amplafi.flow.FlowDefinitionsManager;
+import org.amplafi.flow.FlowImplementor;
+import org.amplafi.flow.impl.FlowActivityImpl;
+import org.amplafi.flow.impl.FlowImpl;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.LogFactory;
+import org.apache.hivemind.util.FileResource;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.easymock.classextension.EasyMock.*;
+
+/**
+ * Tests {@link FlowTemplateCompiler}.
+ */
+public class TestFlowTemplateCompiler extends Assert {
+
+    private static final String FLOW_TYPE = "Compiled";
+
+    private static final String APPLICATION =
+        "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n"
+        + "<!DOCTYPE application PUBLIC \"-//Apache Software Foundation//Tapestry Specification 4.0//EN\""
+        + " \"http://tapestry.apache.org/dtd/Tapestry_4_0.dtd\">\n"
+        + "<application name=\"test\">\n"
+        + "    <meta key=\"" + FlowTemplateCompiler.COMPONENT_CLASS_PACKAGES + "\" value=\"org.amplafi.flow.web.components\"/>\n"
+        + "    <library id=\"flow\" specification-path=\"/org/amplafi/flow/web/components/Flow.library\"/>\n"
+        + "</application>\n";
+
+    /**
+     * A compiled template is loaded back with {@link PrecompiledFlowTemplates} for the same definition, but not for a changed one.
+     * @throws Exception
+     */
+    @Test
+    public void testCompileAndLoad() throws Exception {
+        File directory = File.createTempFile("flowTemplates", "");
+        directory.delete();
+        directory.mkdirs();
+        try {
+            File applicationSpecification = new File(directory, "test.application");
+            FileUtils.writeStringToFile(applicationSpecification, APPLICATION, "UTF-8");
+            File outputDirectory = new File(directory, "classes");
+            FlowImplementor flow = createFlow(1);
+            FlowDefinitionsManager flowDefinitionsManager = createMock(FlowDefinitionsManager.class);
+            expect(flowDefinitionsManager.getFlowDefinitions()).andReturn(Collections.<String, FlowImplementor>singletonMap(FLOW_TYPE, flow)).anyTimes();
+            expect(flowDefinitionsManager.getFlowDefinition(FLOW_TYPE)).andReturn(flow).anyTimes();
+            replay(flowDefinitionsManager);
+
+            FlowTemplateCompiler compiler = new FlowTemplateCompiler(flowDefinitionsManager, outputDirectory,
+                new FileResource(applicationSpecification.getPath()), null);
+            assertEquals(compiler.compile(), 1);
+
+            PrecompiledFlowTemplates precompiledTemplates = new PrecompiledFlowTemplates();
+            precompiledTemplates.setLog(LogFactory.getLog(getClass()));
+            precompiledTemplates.load(new URLClassLoader(new URL[] { outputDirectory.toURI().toURL() }, null));
+            assertFalse(precompiledTemplates.isEmpty());
+            FlowAwareTemplateSourceDelegate delegate = compiler.createTemplateSourceDelegate();
+            String template = precompiledTemplates.getComponentTemplate(flow, delegate.getPrecompiledSignature(flow, null, null, null));
+            assertNotNull(template);
+            assertEquals(template, new String(delegate.createComponentTemplateData(flow, null, null, null)));
+
+            Flow changed = createFlow(2);
+            assertNull(precompiledTemplates.getComponentTemplate(changed, delegate.getPrecompiledSignature(changed, null, null, null)));
+        } finally {
+            FileUtils.deleteDirectory(directory);
+        }
+    }
+
+    private FlowImplementor createFlow(int activityCount) {
+        FlowImplementor flow = new FlowImpl(FLOW_TYPE);
+        for (int i = 0; i < activityCount; i++) {
+            FlowActivityImpl activity = new FlowActivityImpl();
+            activity.setComponentName("FlowControl");
+            flow.addActivity(activity);
+        }
+        return flow;
+    }
+}
@@ -0,0 +1,119 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+
+import org.amplafi.flow.FlowImplementor;
+import org.amplafi.flow.impl.FlowActivityImpl;
+import org.amplafi.flow.impl.FlowImpl;
+import org.amplafi.flow.web.resolvers.FlowTemplateCache.CachedTemplate;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tapestry.asset.ExternalResource;
+import org.apache.tapestry.parse.ComponentTemplate;
+import org.apache.tapestry.parse.TemplateToken;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link FlowTemplateDiskCache}.
+ */
+public class TestFlowTemplateDiskCache extends Assert {
+
+    private static final String TYPE = "Disk";
+
+    private static final String KEY = "key";
+
+    /**
+     * A stored template is read back.
+     * @throws Exception
+     */
+    @Test
+    public void testStoreAndLoad() throws Exception {
+        FlowTemplateDiskCache diskCache = createDiskCache();
+        try {
+            FlowImplementor flow = createFlow();
+            diskCache.store(TYPE, KEY, createTemplate("<div>stored</div>"), flow);
+            CachedTemplate loaded = diskCache.load(TYPE, KEY, new ExternalResource("dummy", null), flow);
+            assertNotNull(loaded);
+            assertEquals(loaded.getContent(), "<div>stored</div>");
+        } finally {
+            FileUtils.deleteDirectory(diskCache.getCacheDirectory());
+        }
+    }
+
+    /**
+     * A damaged file is not an error: it is deleted so that the template is generated again.
+     * @throws Exception
+     */
+    @Test
+    public void testDamagedFile() throws Exception {
+        FlowTemplateDiskCache diskCache = createDiskCache();
+        try {
+            FlowImplementor flow = createFlow();
+            diskCache.store(TYPE, KEY, createTemplate("<div>stored</div>"), flow);
+            File[] files = diskCache.getCacheDirectory().listFiles();
+            assertEquals(files.length, 1);
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(files[0]));
+            // valid header followed by a negative invisible activity count
+            out.writeInt(0x46545043);
+            out.writeInt(1);
+            out.writeInt(1);
+            out.writeChars("a");
+            out.writeInt(-1);
+            out.close();
+
+            assertNull(diskCache.load(TYPE, KEY, new ExternalResource("dummy", null), flow));
+            assertFalse(files[0].exists());
+
+            // a length that is longer than the file
+            diskCache.store(TYPE, KEY, createTemplate("<div>stored</div>"), flow);
+            out = new DataOutputStream(new FileOutputStream(files[0]));
+            out.writeInt(0x46545043);
+            out.writeInt(1);
+            out.writeInt(Integer.MAX_VALUE);
+            out.close();
+
+            assertNull(diskCache.load(TYPE, KEY, new ExternalResource("dummy", null), flow));
+            assertFalse(files[0].exists());
+        } finally {
+            FileUtils.deleteDirectory(diskCache.getCacheDirectory());
+        }
+    }
+
+    private FlowTemplateDiskCache createDiskCache() throws Exception {
+        File directory = File.createTempFile("flowTemplates", "");
+        directory.delete();
+        FlowTemplateDiskCache diskCache = new FlowTemplateDiskCache();
+        diskCache.setLog(LogFactory.getLog(getClass()));
+        diskCache.setCacheDirectory(directory);
+        return diskCache;
+    }
+
+    private CachedTemplate createTemplate(String content) {
+        char[] templateData = content.toCharArray();
+        return new CachedTemplate(templateData, new ComponentTemplate(templateData, new TemplateToken[0]));
+    }
+
+    private FlowImplementor createFlow() {
+        FlowImplementor flow = new FlowImpl(TYPE);
+        FlowActivityImpl activity = new FlowActivityImpl();
+        activity.setComponentName("comp_0");
+        flow.addActivity(activity);
+        return flow;
+    }
+}
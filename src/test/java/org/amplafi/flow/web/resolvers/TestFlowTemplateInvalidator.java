@@ -0,0 +1,148 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.amplafi.flow.FlowImplementor;
+import org.amplafi.flow.impl.FlowActivityImpl;
+import org.amplafi.flow.impl.FlowImpl;
+import org.amplafi.flow.web.components.FullFlowComponent;
+import org.amplafi.flow.web.resolvers.FlowTemplateCache.CachedTemplate;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.logging.LogFactory;
+import org.apache.tapestry.asset.ExternalResource;
+import org.apache.tapestry.parse.ComponentTemplate;
+import org.apache.tapestry.parse.TemplateToken;
+import org.apache.tapestry.services.ResetEventHub;
+import org.apache.tapestry.spec.ComponentSpecification;
+import org.apache.tapestry.spec.IComponentSpecification;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import static org.easymock.classextension.EasyMock.*;
+
+/**
+ * Tests {@link FlowTemplateInvalidator}.
+ */
+public class TestFlowTemplateInvalidator extends Assert {
+
+    private static final String CHANGED = "Changed";
+
+    private static final String UNCHANGED = "Unchanged";
+
+    private static final String KEY = "key";
+
+    private static final String BLOCK = "fc0";
+
+    /**
+     * The templates, fragments, disk files and specifications of the changed flow are evicted, those of the other flow are kept.
+     * Tapestry's caches are reset without the template cache being cleared.
+     * @throws Exception
+     */
+    @Test
+    public void testFlowDefinitionsChanged() throws Exception {
+        FlowTemplateCache templateCache = new FlowTemplateCache();
+        FlowTemplateDiskCache diskCache = createDiskCache();
+        FlowSpecificationCache specificationCache = new FlowSpecificationCache();
+        specificationCache.setTemplateMap(Collections.<Class<?>, String>singletonMap(FullFlowComponent.class, "FullFlow"));
+        try {
+            FlowImplementor changed = createFlow(CHANGED);
+            FlowImplementor unchanged = createFlow(UNCHANGED);
+            AtomicInteger created = new AtomicInteger();
+            fillCaches(templateCache, diskCache, CHANGED, changed, created);
+            fillCaches(templateCache, diskCache, UNCHANGED, unchanged, created);
+            templateCache.putSpecification(null, "comp_0", new ComponentSpecification());
+            IComponentSpecification changedSpecification = specificationCache.getComponentSpecification(CHANGED + "FullFlow");
+            IComponentSpecification unchangedSpecification = specificationCache.getComponentSpecification(UNCHANGED + "FullFlow");
+            assertEquals(created.get(), 2);
+
+            ResetEventHub resetEventHub = createMock(ResetEventHub.class);
+            resetEventHub.removeResetEventListener(templateCache);
+            resetEventHub.fireResetEvent();
+            resetEventHub.addResetEventListener(templateCache);
+            replay(resetEventHub);
+
+            FlowTemplateInvalidator invalidator = new FlowTemplateInvalidator();
+            invalidator.setLog(LogFactory.getLog(getClass()));
+            invalidator.setTemplateCache(templateCache);
+            invalidator.setTemplateDiskCache(diskCache);
+            invalidator.setFlowSpecificationCache(specificationCache);
+            invalidator.setResetEventHub(resetEventHub);
+            invalidator.flowDefinitionsChanged(CHANGED);
+            verify(resetEventHub);
+
+            // templates
+            templateCache.getOrCreate(UNCHANGED, unchanged, KEY, null, null, new CountingCreator(created));
+            assertEquals(created.get(), 2);
+            templateCache.getOrCreate(CHANGED, changed, KEY, null, null, new CountingCreator(created));
+            assertEquals(created.get(), 3);
+            // fragments
+            assertNull(templateCache.getFragment(CHANGED, null, BLOCK, KEY));
+            assertNotNull(templateCache.getFragment(UNCHANGED, null, BLOCK, KEY));
+            // disk files
+            assertNull(diskCache.load(CHANGED, KEY, new ExternalResource("dummy", null), changed));
+            assertNotNull(diskCache.load(UNCHANGED, KEY, new ExternalResource("dummy", null), unchanged));
+            // specifications
+            assertNull(templateCache.getSpecification(null, "comp_0"));
+            assertNotSame(specificationCache.getComponentSpecification(CHANGED + "FullFlow"), changedSpecification);
+            assertSame(specificationCache.getComponentSpecification(UNCHANGED + "FullFlow"), unchangedSpecification);
+        } finally {
+            FileUtils.deleteDirectory(diskCache.getCacheDirectory());
+        }
+    }
+
+    private void fillCaches(FlowTemplateCache templateCache, FlowTemplateDiskCache diskCache, String flowTypeName, FlowImplementor flow,
+        AtomicInteger created) {
+        templateCache.getOrCreate(flowTypeName, flow, KEY, null, null, new CountingCreator(created));
+        templateCache.putFragment(flowTypeName, null, BLOCK, KEY, "<div/>".toCharArray());
+        diskCache.store(flowTypeName, KEY, createTemplate(), flow);
+    }
+
+    private FlowTemplateDiskCache createDiskCache() throws Exception {
+        File directory = File.createTempFile("flowTemplates", "");
+        directory.delete();
+        FlowTemplateDiskCache diskCache = new FlowTemplateDiskCache();
+        diskCache.setLog(LogFactory.getLog(getClass()));
+        diskCache.setCacheDirectory(directory);
+        return diskCache;
+    }
+
+    private static CachedTemplate createTemplate() {
+        char[] templateData = "<div/>".toCharArray();
+        return new CachedTemplate(templateData, new ComponentTemplate(templateData, new TemplateToken[0]));
+    }
+
+    private FlowImplementor createFlow(String flowTypeName) {
+        FlowImplementor flow = new FlowImpl(flowTypeName);
+        FlowActivityImpl activity = new FlowActivityImpl();
+        activity.setComponentName("comp_0");
+        flow.addActivity(activity);
+        return flow;
+    }
+
+    private static class CountingCreator implements Callable<CachedTemplate> {
+        private final AtomicInteger created;
+        CountingCreator(AtomicInteger created) {
+            this.created = created;
+        }
+        public CachedTemplate call() {
+            created.incrementAndGet();
+            return createTemplate();
+        }
+    }
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import java.io.LineNumberReader;
+import java.io.StringReader;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Tests {@link LineIndexedContent}.
+ */
+public class TestLineIndexedContent extends Assert {
+
+    /**
+     * lines must be the same as the ones {@link LineNumberReader} returns.
+     * @throws Exception
+     */
+    @Test
+    public void testSameLinesAsLineNumberReader() throws Exception {
+        String[] contents = { "", "one", "one\n", "one\ntwo", "one\r\ntwo\rthree\n\nfive", "\n\n", "a\r\r\nb" };
+        for(String content: contents) {
+            LineIndexedContent indexed = new LineIndexedContent(content.toCharArray());
+            LineNumberReader reader = new LineNumberReader(new StringReader(content));
+            int lineCount = 0;
+            for(String line = reader.readLine(); line != null; line = reader.readLine()) {
+                lineCount++;
+                assertEquals(indexed.getLine(reader.getLineNumber()), line, content);
+            }
+            assertEquals(indexed.getLineCount(), lineCount, content);
+        }
+    }
+
+    @Test(expectedExceptions=IndexOutOfBoundsException.class)
+    public void testLineOutOfRange() {
+        new LineIndexedContent("one\ntwo".toCharArray()).getLine(3);
+    }
+}
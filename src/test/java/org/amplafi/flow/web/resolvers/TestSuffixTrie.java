@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed
+ * under the License is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES
+ * OR CONDITIONS OF ANY KIND, either express or implied. See the License for
+ * the specific language governing permissions and limitations under the
+ * License.
+ */
+package org.amplafi.flow.web.resolvers;
+
+import org.amplafi.flow.web.resolvers.SuffixTrie.Match;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+/**
+ * Test {@link SuffixTrie}.
+ */
+public class TestSuffixTrie extends Assert {
+
+    @Test
+    public void testFind() {
+        SuffixTrie<Integer> trie = new SuffixTrie<Integer>();
+        trie.put("FullFlow", 1);
+        trie.put("Flow", 2);
+        trie.put("FlowPage", 3);
+
+        Match<Integer> match = trie.find("fooFullFlow");
+        assertEquals(match.getSuffix(), "FullFlow");
+        assertEquals(match.getValue(), Integer.valueOf(1));
+
+        assertEquals(trie.find("fooFlow").getValue(), Integer.valueOf(2));
+        assertEquals(trie.find("FlowPage").getValue(), Integer.valueOf(3));
+        assertNull(trie.find("fooFlowPages"));
+        assertNull(trie.find("low"));
+        assertNull(trie.find(""));
+    }
+}